@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import name.dmaus.schxslt.adapter.Adapter;
+import name.dmaus.schxslt.adapter.SchXslt;
+import name.dmaus.schxslt.adapter.SchXslt2;
+
+/**
+ * Generates Schematron schemas and documents of configurable size.
+ *
+ * <p>Every pattern of a generated schema has one rule for the record elements of a generated document. Every
+ * hundredth record of a document is invalid, so that validations report a proportional number of findings.</p>
+ */
+final class Generator
+{
+    static final int INVALID_EVERY = 100;
+
+    private Generator ()
+    {
+    }
+
+    /**
+     * Return the adapter compiling a query language binding.
+     *
+     * @param queryBinding Query language binding
+     * @return The adapter
+     */
+    static Adapter adapter (final String queryBinding)
+    {
+        if ("xslt3".equals(queryBinding)) {
+            return new SchXslt2();
+        }
+        return new SchXslt();
+    }
+
+    /**
+     * Return a Schematron with a number of patterns.
+     *
+     * @param queryBinding Query language binding
+     * @param patterns Number of patterns
+     * @return The schema
+     */
+    static byte[] schema (final String queryBinding, final int patterns)
+    {
+        StringBuilder schema = new StringBuilder();
+        schema.append("<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='").append(queryBinding).append("'>");
+        for (int i = 0; i < patterns; i++) {
+            schema.append("<pattern id='pattern-").append(i).append("'>")
+                .append("<rule context='record'>")
+                .append("<assert test='@id' role='error'>A record has an id</assert>")
+                .append("<assert test='string-length(name) &gt; 0' role='error'>A record has a name</assert>")
+                .append("<report test='number(value) &lt; 0' role='warning'>The value of record <value-of select='@id'/> is negative</report>")
+                .append("</rule>")
+                .append("</pattern>");
+        }
+        schema.append("</schema>");
+        return schema.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Return a document with a number of records.
+     *
+     * @param records Number of records
+     * @return The document
+     */
+    static byte[] document (final int records)
+    {
+        StringBuilder document = new StringBuilder();
+        document.append("<records>");
+        for (int i = 0; i < records; i++) {
+            if (i % INVALID_EVERY == INVALID_EVERY - 1) {
+                document.append("<record><name/><value>-").append(i).append("</value></record>");
+            } else {
+                document.append("<record id='r").append(i).append("'><name>Record ").append(i).append("</name><value>").append(i).append("</value></record>");
+            }
+        }
+        document.append("</records>");
+        return document.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Return a source reading generated content.
+     *
+     * @param content Generated content
+     * @param systemId System identifier of the source
+     * @return The source
+     */
+    static Source source (final byte[] content, final String systemId)
+    {
+        return new StreamSource(new ByteArrayInputStream(content), systemId);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Input stream reading the remaining bytes of a buffer.
+ *
+ * <p>The stream reads a duplicate of the buffer, the position of the buffer is not changed. Bytes are copied from the
+ * buffer straight into the array of the reader, so that a heap, direct, or mapped buffer is read without an
+ * intermediate copy.</p>
+ */
+@NotThreadSafe
+final class ByteBufferInputStream extends InputStream
+{
+    private static final int BYTE_MASK = 0xff;
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream (final ByteBuffer buffer)
+    {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read ()
+    {
+        int value = -1;
+        if (buffer.hasRemaining()) {
+            value = buffer.get() & BYTE_MASK;
+        }
+        return value;
+    }
+
+    @Override
+    public int read (final byte[] bytes, final int offset, final int length)
+    {
+        if (length == 0) {
+            return 0;
+        }
+        int count = Math.min(length, buffer.remaining());
+        if (count == 0) {
+            count = -1;
+        } else {
+            buffer.get(bytes, offset, count);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip (final long count)
+    {
+        int skipped = (int)Math.max(0, Math.min(count, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available ()
+    {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported ()
+    {
+        return true;
+    }
+
+    @Override
+    public void mark (final int limit)
+    {
+        buffer.mark();
+    }
+
+    @Override
+    public void reset ()
+    {
+        buffer.reset();
+    }
+}
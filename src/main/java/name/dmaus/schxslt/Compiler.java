@@ -25,21 +25,24 @@
 package name.dmaus.schxslt;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.URIResolver;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 
 import org.w3c.dom.Document;
 
-import org.xmlresolver.XMLResolver;
-
 import name.dmaus.schxslt.adapter.Adapter;
 
 import net.jcip.annotations.ThreadSafe;
@@ -48,37 +51,110 @@ import java.util.Locale;
 
 /**
  * Compile validation stylesheet from a Schematron schema.
+ *
+ * <p>The transpiler stylesheets are compiled once per TransformerFactory and resolver and shared by all compilers
+ * using them. The stylesheets of the default factory are kept for the lifetime of the application, those of other
+ * factories are held softly and released with the factory.</p>
+ *
+ * <p>If the compiler option {@code phase} is {@link Schematron#RUNTIME_PHASE} the Schematron is compiled with all
+ * patterns and the phase is selected by the validation stylesheet parameter {@link Schematron#PHASE_PARAMETER}.</p>
+ *
+ * <p>If the compiler option {@link Schematron#OPTIMIZE_KEYS_OPTION} is true, lookups of elements by the value of
+ * another node are rewritten to key lookups after the transpiler steps.</p>
  */
 @ThreadSafe
 public final class Compiler
 {
+    /**
+     * Final pipeline step that lets a validation stylesheet report its findings as they occur.
+     *
+     * <p>The step is only applied if the compiler option {@link Schematron#LIMIT_OPTION} is true and the Schematron is
+     * compiled with Saxon, the only processor passing the reported findings to a {@link FindingCollector}.</p>
+     */
+    static final String FINDINGS_STEP = "classpath:/name/dmaus/schxslt/findings.xsl";
+
+    private static final String PHASE = "phase";
+
     private final Adapter adapter;
     private final TransformerFactory transformerFactory;
-    private final XMLResolver xmlResolver = new XMLResolver();
+    private final TranspilerCache transpilers;
+    private final SharedResolver resolver;
 
     public Compiler (final Adapter adapter)
     {
-        this.adapter = adapter;
-        this.transformerFactory = TransformerFactory.newInstance();
-        this.transformerFactory.setURIResolver(xmlResolver.getURIResolver());
+        this(adapter, DefaultTransformerFactory.INSTANCE);
     }
 
     public Compiler (final Adapter adapter, final TransformerFactory transformerFactory)
+    {
+        this(adapter, transformerFactory, null);
+    }
+
+    /**
+     * Create a compiler resolving with a shared resolver.
+     *
+     * <p>The shared resolver resolves the transpiler stylesheets and the documents they load, i.e. Schematron
+     * includes, instead of the URIResolver of the TransformerFactory.</p>
+     *
+     * @param adapter Transpiler adapter
+     * @param transformerFactory TransformerFactory
+     * @param resolver Shared resolver or null to use the URIResolver of the TransformerFactory
+     */
+    public Compiler (final Adapter adapter, final TransformerFactory transformerFactory, final SharedResolver resolver)
     {
         this.adapter = adapter;
         this.transformerFactory = transformerFactory;
+        if (transformerFactory == DefaultTransformerFactory.INSTANCE && resolver == null) {
+            this.transpilers = DefaultTransformerFactory.TRANSPILERS;
+        } else if (resolver == null) {
+            this.transpilers = TranspilerCache.of(transformerFactory, SharedResolver.getDefault());
+        } else {
+            this.transpilers = TranspilerCache.of(transformerFactory, resolver);
+        }
+        this.resolver = resolver;
+    }
+
+    /**
+     * Return the TransformerFactory shared by all instances that were not given one.
+     *
+     * @return Shared default TransformerFactory
+     */
+    static TransformerFactory getDefaultTransformerFactory ()
+    {
+        return DefaultTransformerFactory.INSTANCE;
     }
 
     public Document compile (final Source schema, final Map<String, Object> options) throws SchematronException
     {
         Document schematron = loadSchematron(schema);
+        PhaseSelection phaseSelection = null;
+        Map<String, Object> compilerOptions = options;
+        if (options != null && PhaseSelection.RUNTIME_PHASE.equals(options.get(PHASE))) {
+            phaseSelection = new PhaseSelection(schematron);
+            compilerOptions = new HashMap<String, Object>(options);
+            compilerOptions.put(PHASE, "#ALL");
+        }
+
         try {
             String queryBinding = schematron.getDocumentElement().getAttribute("queryBinding").toLowerCase(Locale.ROOT);
-            List<Transformer> pipeline = createPipeline(adapter.getTranspilerStylesheets(queryBinding), options);
+            List<String> steps = getPipelineSteps(adapter, queryBinding, transformerFactory, options);
+            List<Templates> pipeline = createPipeline(steps);
             String systemId = schematron.getDocumentURI();
             DOMSource schemaSource = new DOMSource(schematron, systemId);
-            
-            Document stylesheet = applyPipeline(pipeline, schemaSource);
+
+            Map<String, Object> pipelineOptions = compilerOptions;
+            Document stylesheet;
+            if (isStreamingSupported()) {
+                stylesheet = Instrumentation.transpile(systemId, steps, () -> applyStreamingPipeline(pipeline, pipelineOptions, schemaSource));
+            } else {
+                stylesheet = applyPipeline(steps, pipeline, pipelineOptions, schemaSource);
+            }
+            if (options != null && Boolean.parseBoolean(String.valueOf(options.get(Schematron.OPTIMIZE_KEYS_OPTION)))) {
+                new KeyOptimizer(stylesheet).optimize();
+            }
+            if (phaseSelection != null) {
+                phaseSelection.instrument(stylesheet);
+            }
             stylesheet.setDocumentURI(systemId);
             return stylesheet;
         } catch (TransformerException e) {
@@ -86,7 +162,43 @@ public final class Compiler
         }
     }
 
+    /**
+     * Return the stylesheets applied to compile a Schematron with the given query binding.
+     *
+     * @param adapter Adapter providing the transpiler stylesheets
+     * @param queryBinding Lowercase query binding of the Schematron
+     * @param transformerFactory TransformerFactory compiling the Schematron
+     * @param options Compiler options or null
+     * @return Pipeline steps in order of application
+     * @throws SchematronException If the adapter does not support the query binding
+     */
+    static List<String> getPipelineSteps (final Adapter adapter, final String queryBinding, final TransformerFactory transformerFactory, final Map<String, Object> options) throws SchematronException
+    {
+        List<String> steps = new ArrayList<String>(adapter.getTranspilerStylesheets(queryBinding));
+        if (options != null && Boolean.parseBoolean(String.valueOf(options.get(Schematron.LIMIT_OPTION))) && ParsedDocument.isSaxon(transformerFactory)) {
+            steps.add(FINDINGS_STEP);
+        }
+        return steps;
+    }
+
     private Document loadSchematron (final Source source) throws SchematronException
+    {
+        if (source instanceof DOMSource domSource && domSource.getNode() instanceof Document document
+            && Objects.equals(document.getDocumentURI(), source.getSystemId())) {
+            return document;
+        }
+        return load(transformerFactory, source);
+    }
+
+    /**
+     * Load a Schematron document into a DOM tree.
+     *
+     * @param transformerFactory TransformerFactory used to create the tree
+     * @param source Schematron source
+     * @return The Schematron document
+     * @throws SchematronException If loading the document fails
+     */
+    static Document load (final TransformerFactory transformerFactory, final Source source) throws SchematronException
     {
         String systemId = source.getSystemId();
 
@@ -104,37 +216,99 @@ public final class Compiler
         }
     }
 
-    private List<Transformer> createPipeline (final List<String> steps, final Map<String, Object> options) throws TransformerException
+    private List<Templates> createPipeline (final List<String> steps) throws TransformerException
     {
-        final URIResolver resolver = xmlResolver.getURIResolver();
-        final List<Transformer> templates = new ArrayList<Transformer>();
-
+        final List<Templates> templates = new ArrayList<Templates>();
         for (String step : steps) {
-            final Source source = resolver.resolve(step, null);
-            final Transformer transformer = transformerFactory.newTransformer(source);
-            if (options != null) {
-                for (Map.Entry<String, Object> param : options.entrySet()) {
-                    transformer.setParameter(param.getKey(), param.getValue());
-                }
-            }
-            templates.add(transformer);
+            templates.add(transpilers.get(step));
         }
-
         return templates;
     }
 
-    private Document applyPipeline (final List<Transformer> steps, final Source document) throws TransformerException
+    private boolean isStreamingSupported ()
+    {
+        return transformerFactory.getFeature(SAXTransformerFactory.FEATURE) && transformerFactory.getFeature(SAXResult.FEATURE);
+    }
+
+    /**
+     * Apply the pipeline by chaining the steps with SAX events.
+     *
+     * <p>Only the result of the last step is built as a tree. The steps run together and cannot be timed
+     * individually.</p>
+     */
+    private Document applyStreamingPipeline (final List<Templates> steps, final Map<String, Object> options, final Source document) throws TransformerException
+    {
+        final SAXTransformerFactory saxTransformerFactory = (SAXTransformerFactory)transformerFactory;
+        final DOMResult result = new DOMResult();
+        javax.xml.transform.Result next = result;
+
+        for (int i = steps.size() - 1; i > 0; i--) {
+            TransformerHandler handler = saxTransformerFactory.newTransformerHandler(steps.get(i));
+            handler.setSystemId(document.getSystemId());
+            handler.setResult(next);
+            configure(handler.getTransformer(), options);
+            next = new SAXResult(handler);
+            next.setSystemId(document.getSystemId());
+        }
+
+        Transformer transformer = steps.get(0).newTransformer();
+        configure(transformer, options);
+        transformer.transform(document, next);
+
+        return (Document)result.getNode();
+    }
+
+    private Document applyPipeline (final List<String> names, final List<Templates> steps, final Map<String, Object> options, final Source document) throws TransformerException
     {
         DOMResult result = null;
         Source source = document;
 
-        for (Transformer transformer : steps) {
-            result = new DOMResult();
-            transformer.transform(source, result);
+        for (int i = 0; i < steps.size(); i++) {
+            Templates step = steps.get(i);
+            Source stepSource = source;
+            result = Instrumentation.transpile(document.getSystemId(), List.of(names.get(i)), () -> applyStep(step, options, stepSource));
             source = new DOMSource(result.getNode(), source.getSystemId());
         }
 
         return (Document)result.getNode();
     }
 
+    private DOMResult applyStep (final Templates step, final Map<String, Object> options, final Source source) throws TransformerException
+    {
+        Transformer transformer = step.newTransformer();
+        configure(transformer, options);
+        DOMResult result = new DOMResult();
+        transformer.transform(source, result);
+        return result;
+    }
+
+    private void configure (final Transformer transformer, final Map<String, Object> options)
+    {
+        if (resolver != null) {
+            transformer.setURIResolver(resolver);
+        }
+        if (options != null) {
+            for (Map.Entry<String, Object> param : options.entrySet()) {
+                transformer.setParameter(param.getKey(), param.getValue());
+            }
+        }
+    }
+
+    /**
+     * Lazily created TransformerFactory resolving with the default resolver.
+     */
+    private static final class DefaultTransformerFactory
+    {
+        static final TransformerFactory INSTANCE = TransformerFactory.newInstance();
+        static final TranspilerCache TRANSPILERS;
+
+        static {
+            INSTANCE.setURIResolver(SharedResolver.getDefault());
+            TRANSPILERS = new TranspilerCache(INSTANCE, SharedResolver.getDefault());
+        }
+
+        private DefaultTransformerFactory ()
+        {
+        }
+    }
 }
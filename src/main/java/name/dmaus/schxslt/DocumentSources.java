@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Document;
+
+/**
+ * Sources of documents held in memory or in files.
+ */
+final class DocumentSources
+{
+    /**
+     * Files of at least this size are mapped into memory.
+     */
+    static final long MAP_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Files larger than this size cannot be mapped into a single buffer and are read by the parser.
+     */
+    static final long MAX_MAP_SIZE = Integer.MAX_VALUE;
+
+    private static final String DOCUMENT_NULL = "Document may not be null";
+
+    private DocumentSources ()
+    {
+    }
+
+    /**
+     * Return a source reading a DOM document with the document URI as system identifier.
+     *
+     * @param document Document
+     * @return Source
+     */
+    static Source of (final Document document)
+    {
+        return new DOMSource(document, document.getDocumentURI());
+    }
+
+    /**
+     * Return a source reading a byte array without copying it.
+     *
+     * @param document Document
+     * @return Source
+     */
+    static Source of (final byte[] document)
+    {
+        if (document == null) {
+            throw new IllegalArgumentException(DOCUMENT_NULL);
+        }
+        return new StreamSource(new ByteArrayInputStream(document));
+    }
+
+    /**
+     * Return a source reading the remaining bytes of a buffer without changing its position.
+     *
+     * @param document Document
+     * @return Source
+     */
+    static Source of (final ByteBuffer document)
+    {
+        if (document == null) {
+            throw new IllegalArgumentException(DOCUMENT_NULL);
+        }
+        return new StreamSource(new ByteBufferInputStream(document));
+    }
+
+    /**
+     * Return a source reading a file.
+     *
+     * <p>Files of at least {@link #MAP_THRESHOLD} and at most {@link #MAX_MAP_SIZE} bytes are mapped into memory,
+     * other files are opened and closed by the parser. The mapping is released when the source is garbage
+     * collected.</p>
+     *
+     * @param document File
+     * @return Source
+     * @throws SchematronException If the file cannot be mapped
+     */
+    static Source of (final Path document) throws SchematronException
+    {
+        if (document == null) {
+            throw new IllegalArgumentException(DOCUMENT_NULL);
+        }
+        String systemId = document.toUri().toString();
+        try {
+            if (!isMapped(Files.size(document))) {
+                return new StreamSource(systemId);
+            }
+            try (FileChannel channel = FileChannel.open(document, StandardOpenOption.READ)) {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return new StreamSource(new ByteBufferInputStream(mapped), systemId);
+            }
+        } catch (IOException e) {
+            throw new SchematronException("Unable to read " + document, e);
+        }
+    }
+
+    /**
+     * Return true if a file of the given size is mapped into memory.
+     *
+     * @param size File size in bytes
+     * @return True if the file is mapped
+     */
+    static boolean isMapped (final long size)
+    {
+        return size >= MAP_THRESHOLD && size <= MAX_MAP_SIZE;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Failed assertion or successful report of a validation.
+ *
+ * <p>Optional SVRL attributes that are not present in the report are returned as null.</p>
+ */
+@Immutable
+public final class Finding
+{
+    private static final String ID = "id";
+
+    private final Kind kind;
+    private final String id;
+    private final String role;
+    private final String flag;
+    private final String location;
+    private final String test;
+    private final String text;
+    private final String pattern;
+    private final String rule;
+    private final String context;
+
+    /**
+     * Read a finding from the SVRL report.
+     *
+     * @param kind Kind of finding
+     * @param finding The svrl:failed-assert or svrl:successful-report element
+     * @param activePattern The svrl:active-pattern preceding the finding or null
+     * @param firedRule The svrl:fired-rule preceding the finding or null
+     */
+    Finding (final Kind kind, final Element finding, final Element activePattern, final Element firedRule)
+    {
+        this.kind = kind;
+        this.id = getAttribute(finding, ID);
+        this.role = getAttribute(finding, "role");
+        this.flag = getAttribute(finding, "flag");
+        this.location = getAttribute(finding, "location");
+        this.test = getAttribute(finding, "test");
+        this.text = readText(finding);
+        this.pattern = getAttribute(activePattern, ID);
+        this.rule = getAttribute(firedRule, ID);
+        this.context = getAttribute(firedRule, "context");
+    }
+
+    /**
+     * Return the kind of finding.
+     *
+     * @return Kind of finding
+     */
+    public Kind getKind ()
+    {
+        return kind;
+    }
+
+    /**
+     * Return the id of the assertion or report.
+     *
+     * @return Identifier or null
+     */
+    public String getId ()
+    {
+        return id;
+    }
+
+    /**
+     * Return the role of the assertion or report.
+     *
+     * @return Role or null
+     */
+    public String getRole ()
+    {
+        return role;
+    }
+
+    /**
+     * Return the flag of the assertion or report.
+     *
+     * @return Flag or null
+     */
+    public String getFlag ()
+    {
+        return flag;
+    }
+
+    /**
+     * Return the location of the node the finding is about.
+     *
+     * @return XPath expression selecting the node
+     */
+    public String getLocation ()
+    {
+        return location;
+    }
+
+    /**
+     * Return the test expression of the assertion or report.
+     *
+     * @return Test expression
+     */
+    public String getTest ()
+    {
+        return test;
+    }
+
+    /**
+     * Return the text of the assertion or report.
+     *
+     * @return Text or null
+     */
+    public String getText ()
+    {
+        return text;
+    }
+
+    /**
+     * Return the id of the pattern containing the assertion or report.
+     *
+     * @return Pattern identifier or null
+     */
+    public String getPattern ()
+    {
+        return pattern;
+    }
+
+    /**
+     * Return the id of the rule containing the assertion or report.
+     *
+     * @return Rule identifier or null
+     */
+    public String getRule ()
+    {
+        return rule;
+    }
+
+    /**
+     * Return the context of the rule containing the assertion or report.
+     *
+     * @return Rule context or null
+     */
+    public String getContext ()
+    {
+        return context;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return String.format("%s %s %s", kind.getName(), location, text);
+    }
+
+    private static String getAttribute (final Element element, final String name)
+    {
+        if (element == null || !element.hasAttribute(name)) {
+            return null;
+        }
+        return element.getAttribute(name);
+    }
+
+    private static String readText (final Element finding)
+    {
+        for (Node node = finding.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (Result.isSvrlElement(node, "text")) {
+                return node.getTextContent();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Kind of finding.
+     */
+    public enum Kind
+    {
+        FAILED_ASSERT("failed-assert"),
+        SUCCESSFUL_REPORT("successful-report");
+
+        private final String name;
+
+        Kind (final String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Return the local name of the SVRL element reporting this kind of finding.
+         *
+         * @return Local name
+         */
+        public String getName ()
+        {
+            return name;
+        }
+    }
+}
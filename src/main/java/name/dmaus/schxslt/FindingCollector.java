@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Collects the findings a Saxon transformer reports as xsl:message and stops the transformation at the limit.
+ *
+ * <p>Other messages are passed on to the message handler the transformer had before, or to Saxon's standard message
+ * handler if it had none. The findings are read through a DOM view of the messages.</p>
+ */
+final class FindingCollector implements Consumer<Object>, ErrorListener
+{
+    private final ValidationLimit limit;
+    private final List<Element> findings = new ArrayList<Element>();
+    private final ErrorListener errorListener;
+    private final Consumer<Object> messageHandler;
+    private int count;
+    private boolean limitReached;
+
+    private FindingCollector (final ValidationLimit limit, final ErrorListener errorListener, final Consumer<Object> messageHandler)
+    {
+        this.limit = limit;
+        this.errorListener = errorListener;
+        this.messageHandler = messageHandler;
+    }
+
+    /**
+     * Receive the messages and errors of a Saxon transformer.
+     *
+     * @param transformer Saxon transformer
+     * @param limit Limit at which the transformation stops
+     * @return The collector
+     * @throws TransformerException If the message handler cannot be installed
+     */
+    static FindingCollector install (final Transformer transformer, final ValidationLimit limit) throws TransformerException
+    {
+        FindingCollector collector = new FindingCollector(limit, transformer.getErrorListener(), SaxonReflection.getMessageHandler(transformer));
+        SaxonReflection.setMessageHandler(transformer, collector);
+        transformer.setErrorListener(collector);
+        return collector;
+    }
+
+    /**
+     * Return true if the transformation was stopped because the limit was reached.
+     *
+     * @return True if the limit was reached
+     */
+    boolean isLimitReached ()
+    {
+        return limitReached;
+    }
+
+    /**
+     * Return a validation report with the findings collected so far.
+     *
+     * @return Validation report
+     * @throws SchematronException If the report cannot be created
+     */
+    Document createReport () throws SchematronException
+    {
+        try {
+            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+            documentBuilderFactory.setNamespaceAware(true);
+            documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            Document report = documentBuilderFactory.newDocumentBuilder().newDocument();
+            Element root = report.createElementNS(ReportHandler.SVRL, "svrl:schematron-output");
+            report.appendChild(root);
+            for (Element finding : findings) {
+                root.appendChild(report.importNode(finding, true));
+            }
+            return report;
+        } catch (ParserConfigurationException e) {
+            throw new SchematronException("Error creating the validation report", e);
+        }
+    }
+
+    /**
+     * Receive a Saxon message.
+     *
+     * @param message Saxon message
+     */
+    @Override
+    public void accept (final Object message)
+    {
+        Element finding;
+        try {
+            finding = getFinding(SaxonReflection.wrap(SaxonReflection.invoke(SaxonReflection.invoke(message, "getContent"), "getUnderlyingNode")));
+        } catch (TransformerException e) {
+            throw new IllegalStateException("Unable to read a Saxon message", e);
+        }
+        if (finding == null) {
+            messageHandler.accept(message);
+        } else {
+            collect(finding, message);
+        }
+    }
+
+    @Override
+    public void warning (final TransformerException exception) throws TransformerException
+    {
+        errorListener.warning(exception);
+    }
+
+    @Override
+    public void error (final TransformerException exception) throws TransformerException
+    {
+        if (limitReached) {
+            throw exception;
+        }
+        errorListener.error(exception);
+    }
+
+    @Override
+    public void fatalError (final TransformerException exception) throws TransformerException
+    {
+        if (limitReached) {
+            throw exception;
+        }
+        errorListener.fatalError(exception);
+    }
+
+    private void collect (final Element finding, final Object message)
+    {
+        findings.add(finding);
+        if (limit.matches(finding.getAttribute("role"), finding.getAttribute("flag"))) {
+            count++;
+        }
+        if (count >= limit.getMaxFindings()) {
+            limitReached = true;
+            throw newTermination(message, "Validation limit of " + limit.getMaxFindings() + " findings reached");
+        }
+    }
+
+    /**
+     * Return the unchecked Saxon exception that terminates a transformation like xsl:message with terminate="yes".
+     */
+    private static RuntimeException newTermination (final Object context, final String text)
+    {
+        try {
+            Object termination = SaxonReflection.newInstance(context, "net.sf.saxon.expr.instruct.TerminationException", text);
+            return (RuntimeException)SaxonReflection.newInstance(context, "net.sf.saxon.trans.UncheckedXPathException", termination);
+        } catch (TransformerException e) {
+            throw new IllegalStateException("Unable to stop the transformation", e);
+        }
+    }
+
+    private static Element getFinding (final Node content)
+    {
+        for (Node child = content.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && ReportHandler.SVRL.equals(child.getNamespaceURI())) {
+                return (Element)child;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.namespace.QName;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Position of a fragment element in its document.
+ *
+ * <p>Holds the positions of the fragment element and its ancestors among their siblings of the same name. The
+ * position of a changed subtree also holds its location and the number of elements of each name that start before
+ * the subtree or its ancestors, so that the locations of other elements can be put in document order relative to the
+ * subtree.</p>
+ */
+@Immutable
+final class FragmentPosition
+{
+    private static final Pattern STEP = Pattern.compile("Q\\{(?<uri>[^}]*)\\}(?<local>[^\\[]+)\\[(?<position>\\d+)\\]");
+
+    private final int[] positions;
+    private final List<String> steps;
+    private final List<Map<QName, Integer>> siblings;
+
+    private FragmentPosition (final int[] positions, final List<String> steps, final List<Map<QName, Integer>> siblings)
+    {
+        this.positions = positions;
+        this.steps = steps;
+        this.siblings = siblings;
+    }
+
+    /**
+     * Return the position of a record.
+     *
+     * @param positions Positions of the ancestors and the record
+     * @return The position
+     */
+    static FragmentPosition of (final int[] positions)
+    {
+        return new FragmentPosition(positions, Collections.<String>emptyList(), Collections.<Map<QName, Integer>>emptyList());
+    }
+
+    /**
+     * Return the position of a changed subtree.
+     *
+     * @param positions Positions of the ancestors and the subtree
+     * @param location Location of the subtree
+     * @param counters Number of elements of each name started so far by the parent of the subtree and each of its
+     *                 ancestors, innermost first
+     * @return The position
+     */
+    static FragmentPosition of (final int[] positions, final String location, final Deque<Map<QName, Integer>> counters)
+    {
+        List<Map<QName, Integer>> siblings = new ArrayList<Map<QName, Integer>>();
+        Iterator<Map<QName, Integer>> levels = counters.descendingIterator();
+        while (levels.hasNext()) {
+            siblings.add(new HashMap<QName, Integer>(levels.next()));
+        }
+        return new FragmentPosition(positions, ReportMerger.getSteps(location), siblings);
+    }
+
+    /**
+     * Return the positions of the ancestors and the fragment element.
+     *
+     * @return Positions
+     */
+    int[] getPositions ()
+    {
+        return positions.clone();
+    }
+
+    /**
+     * Return the number of ancestors and the fragment element.
+     *
+     * @return Depth of the fragment element
+     */
+    int getDepth ()
+    {
+        return positions.length;
+    }
+
+    /**
+     * Return true if a location precedes the changed subtree in document order.
+     *
+     * <p>Ancestors of the subtree and their attributes precede it, locations inside of the subtree do not. A text node
+     * or other non-element sibling of the subtree or of one of its ancestors is taken to precede it.</p>
+     *
+     * @param location Absolute location in the {@code /Q{uri}local[n]} form
+     * @return True if the location precedes the subtree
+     */
+    boolean precedes (final String location)
+    {
+        List<String> locationSteps = ReportMerger.getSteps(location);
+        int depth = 0;
+        while (depth < locationSteps.size() && depth < steps.size() && locationSteps.get(depth).equals(steps.get(depth))) {
+            depth++;
+        }
+        boolean precedes = true;
+        if (depth == steps.size()) {
+            precedes = false;
+        } else if (depth < locationSteps.size()) {
+            precedes = precedesSibling(locationSteps.get(depth), siblings.get(depth));
+        }
+        return precedes;
+    }
+
+    private static boolean precedesSibling (final String step, final Map<QName, Integer> started)
+    {
+        boolean precedes = true;
+        Matcher matcher = STEP.matcher(step);
+        if (matcher.matches()) {
+            Integer count = started.get(new QName(matcher.group("uri"), matcher.group("local")));
+            precedes = count != null && Integer.parseInt(matcher.group("position")) <= count;
+        }
+        return precedes;
+    }
+}
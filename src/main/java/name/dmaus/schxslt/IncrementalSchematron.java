@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+
+import name.dmaus.schxslt.adapter.Adapter;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Schematron that revalidates only the changed subtrees of an edited document.
+ *
+ * <p>When the Schematron is created its rules are analyzed statically. If the findings for an element only depend on
+ * the element, its descendants, and the names and attributes of its ancestors, a changed document is revalidated by
+ * validating the changed subtrees as fragments, as {@link Schematron#validateRecords(Source, javax.xml.namespace.QName)}
+ * does with records, and merging their findings with the findings of the previous result outside of the changed
+ * subtrees.</p>
+ *
+ * <p>The merged report lists the findings in the order of a report of the full document. Rules that fired without
+ * a finding in a changed subtree are neither removed from nor added to the previous report.</p>
+ *
+ * <p>The document is validated in full whenever the dependencies cannot be determined: if the rules are not local,
+ * the previous result has no validation report or was truncated, a changed subtree is the root element or cannot be
+ * found, or a rule context might match an ancestor of a changed subtree.</p>
+ */
+@ThreadSafe
+public final class IncrementalSchematron
+{
+    private static final int MAX_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+    private static final Pattern LOCATION = Pattern.compile("(/Q\\{[^}]*\\}[^/\\[\\]{}]+\\[\\d+\\])+");
+    private static final Pattern ROOT_ELEMENT = Pattern.compile("/Q\\{[^}]*\\}[^/]+");
+    private static final String LOCATION_ATTRIBUTE = "location";
+    private static final String ROOT = "/";
+
+    private final Schematron schematron;
+    private final LocalityAnalysis analysis;
+
+    public IncrementalSchematron (final Adapter adapter, final Source schematron) throws SchematronException
+    {
+        this(adapter, schematron, null, null, null);
+    }
+
+    /**
+     * Compile and analyze a Schematron.
+     *
+     * @param adapter Transpiler adapter, may not be null
+     * @param schematron Schematron source, may not be null
+     * @param phase Validation phase
+     * @param transformerFactory TransformerFactory to use, possibly with custom URIResolver
+     * @param options Compiler options
+     * @throws SchematronException If compiling the validation stylesheet fails or an included document cannot be read
+     */
+    public IncrementalSchematron (final Adapter adapter, final Source schematron, final String phase, final TransformerFactory transformerFactory, final Map<String, Object> options) throws SchematronException
+    {
+        if (adapter == null) {
+            throw new IllegalArgumentException("Adapter may not be null");
+        }
+        if (schematron == null) {
+            throw new IllegalArgumentException("Source may not be null");
+        }
+
+        TransformerFactory factory = transformerFactory;
+        if (factory == null) {
+            factory = Compiler.getDefaultTransformerFactory();
+        }
+
+        Document document = Compiler.load(factory, schematron);
+        this.analysis = LocalityAnalysis.analyze(document, factory);
+        this.schematron = new Schematron(adapter, new DOMSource(document, document.getDocumentURI()), phase, factory, options);
+    }
+
+    /**
+     * Return the compiled Schematron.
+     *
+     * @return The Schematron
+     */
+    public Schematron getSchematron ()
+    {
+        return schematron;
+    }
+
+    /**
+     * Return true if the rules are local and changed documents can be revalidated incrementally.
+     *
+     * @return True if the rules are local
+     */
+    public boolean isIncremental ()
+    {
+        return analysis.isLocal();
+    }
+
+    /**
+     * Validate a document in full.
+     *
+     * @param document The document to validate
+     * @return The validation result
+     * @throws SchematronException If the document cannot be read or validated
+     */
+    public Result validate (final Path document) throws SchematronException
+    {
+        return schematron.validate(document, null);
+    }
+
+    /**
+     * Revalidate a changed document.
+     *
+     * <p>The changed subtrees are given by the locations of their root elements in the {@code /Q{uri}local[n]} form
+     * used by the validation reports. A changed subtree must exist at the same location in the previous and in the
+     * changed document. Elements that were inserted or deleted, i.e. that shift the positions of their siblings, are
+     * given by the location of their parent.</p>
+     *
+     * @param document The changed document
+     * @param previous Result of validating the previous version of the document
+     * @param changed Locations of the changed subtrees
+     * @return Validation result of the changed document
+     * @throws SchematronException If the document cannot be read or validated
+     */
+    public Result revalidate (final Path document, final Result previous, final Collection<String> changed) throws SchematronException
+    {
+        if (previous == null) {
+            throw new IllegalArgumentException("Previous result may not be null");
+        }
+        if (changed == null) {
+            throw new IllegalArgumentException("Changed locations may not be null");
+        }
+
+        Document report = previous.getValidationReport();
+        Set<String> locations = getOutermost(changed);
+        Result result = null;
+        if (analysis.isLocal() && report != null && !previous.isTruncated() && canRevalidate(locations, report)) {
+            result = revalidateSubtrees(document, report, locations);
+        }
+        if (result == null) {
+            result = validate(document);
+        }
+        return result;
+    }
+
+    /**
+     * Validate the changed subtrees and merge their findings into the previous report, or return null if the changed
+     * subtrees are not independent of their ancestors.
+     */
+    private Result revalidateSubtrees (final Path document, final Document report, final Set<String> locations) throws SchematronException
+    {
+        removeFindings(report, locations);
+        RecordSplitter splitter = RecordSplitter.forLocations(schematron, locations, new ReportMerger(report), DefaultExecutor.get(), MAX_IN_FLIGHT);
+        Result result = splitter.validateFragments(DocumentSources.of(document));
+        if (!splitter.getFoundLocations().equals(locations) || analysis.matchesAny(splitter.getAncestorNames())) {
+            result = null;
+        }
+        return result;
+    }
+
+    /**
+     * Return true if all locations are below the root element and the findings of the report can be assigned to them.
+     */
+    private static boolean canRevalidate (final Set<String> locations, final Document report)
+    {
+        boolean incremental = true;
+        for (String location : locations) {
+            incremental &= LOCATION.matcher(location).matches() && !ROOT_ELEMENT.matcher(location).matches();
+        }
+        for (Node node = report.getDocumentElement().getFirstChild(); incremental && node != null; node = node.getNextSibling()) {
+            if (ReportMerger.isFinding(node)) {
+                String location = ((Element)node).getAttribute(LOCATION_ATTRIBUTE);
+                incremental = ROOT.equals(location) || location.startsWith("/Q{");
+            }
+        }
+        return incremental;
+    }
+
+    /**
+     * Remove the findings inside of the changed subtrees, and the fired rules left without a finding.
+     */
+    private static void removeFindings (final Document report, final Set<String> locations)
+    {
+        Node node = report.getDocumentElement().getFirstChild();
+        while (node != null) {
+            Node next = node.getNextSibling();
+            if (ReportMerger.isFinding(node) && isChanged(((Element)node).getAttribute(LOCATION_ATTRIBUTE), locations)) {
+                Node previous = node.getPreviousSibling();
+                node.getParentNode().removeChild(node);
+                if (previous != null && Result.isSvrlElement(previous, "fired-rule") && (next == null || !ReportMerger.isFinding(next))) {
+                    previous.getParentNode().removeChild(previous);
+                }
+            }
+            node = next;
+        }
+    }
+
+    private static boolean isChanged (final String location, final Set<String> locations)
+    {
+        boolean changed = false;
+        for (String subtree : locations) {
+            changed |= location.equals(subtree) || location.startsWith(subtree + ROOT);
+        }
+        return changed;
+    }
+
+    /**
+     * Return the locations that are not inside of another location.
+     */
+    private static Set<String> getOutermost (final Collection<String> changed)
+    {
+        Set<String> outermost = new HashSet<String>();
+        for (String location : new TreeSet<String>(changed)) {
+            if (!isChanged(location, outermost)) {
+                outermost.add(location);
+            }
+        }
+        return outermost;
+    }
+}
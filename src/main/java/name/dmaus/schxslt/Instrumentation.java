@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Dispatches timings and counters to the registered listeners and to JDK Flight Recorder.
+ *
+ * <p>Listeners declared as {@link SchematronListener} services are registered when the class is loaded. Validations
+ * are only measured if a listener is registered or the JFR validation event is enabled. Exceptions thrown by a
+ * listener are logged and do not fail the compilation or validation.</p>
+ */
+@ThreadSafe
+public final class Instrumentation
+{
+    private static final List<SchematronListener> LISTENERS = new CopyOnWriteArrayList<SchematronListener>();
+    private static final System.Logger LOGGER = System.getLogger(Instrumentation.class.getName());
+
+    static {
+        for (SchematronListener listener : ServiceLoader.load(SchematronListener.class)) {
+            LISTENERS.add(listener);
+        }
+    }
+
+    private Instrumentation ()
+    {
+    }
+
+    /**
+     * Register a listener.
+     *
+     * @param listener Listener
+     */
+    public static void addListener (final SchematronListener listener)
+    {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener may not be null");
+        }
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * Remove a listener.
+     *
+     * @param listener Listener
+     */
+    public static void removeListener (final SchematronListener listener)
+    {
+        LISTENERS.remove(listener);
+    }
+
+    /**
+     * Return a timer measuring a validation.
+     *
+     * @param systemId System identifier of the validated document
+     * @return The timer or a timer that does nothing if validations are not measured
+     */
+    static ValidationTimer startValidation (final String systemId)
+    {
+        if (LISTENERS.isEmpty() && !JfrListener.isValidationEnabled()) {
+            return ValidationTimer.DISABLED;
+        }
+        return new ValidationTimer(systemId);
+    }
+
+    /**
+     * Apply transpiler stylesheets and report their duration.
+     *
+     * @param <T> Type of the result
+     * @param <E> Type of the exception thrown by the region
+     * @param systemId System identifier of the Schematron or null
+     * @param steps Transpiler stylesheets applied by the region
+     * @param region Region applying the stylesheets
+     * @return Result of the region
+     * @throws E If the region fails
+     */
+    static <T, E extends Exception> T transpile (final String systemId, final List<String> steps, final TimedRegion<T, E> region) throws E
+    {
+        JfrListener.TranspileEvent event = JfrListener.beginTranspile();
+        long start = System.nanoTime();
+        T result = region.run();
+        long duration = System.nanoTime() - start;
+        JfrListener.endTranspile(event, systemId, steps);
+        notifyListeners(listener -> listener.transpiled(systemId, steps, duration));
+        return result;
+    }
+
+    /**
+     * Compile a validation stylesheet to Templates and report the duration.
+     *
+     * @param <T> Type of the result
+     * @param <E> Type of the exception thrown by the region
+     * @param systemId System identifier of the validation stylesheet or null
+     * @param region Region compiling the validation stylesheet
+     * @return Result of the region
+     * @throws E If the region fails
+     */
+    static <T, E extends Exception> T createTemplates (final String systemId, final TimedRegion<T, E> region) throws E
+    {
+        JfrListener.TemplatesEvent event = JfrListener.beginTemplates();
+        long start = System.nanoTime();
+        T result = region.run();
+        long duration = System.nanoTime() - start;
+        JfrListener.endTemplates(event, systemId);
+        notifyListeners(listener -> listener.templatesCreated(systemId, duration));
+        return result;
+    }
+
+    static void validated (final JfrListener.ValidationEvent event, final ValidationMetrics metrics)
+    {
+        JfrListener.endValidation(event, metrics);
+        notifyListeners(listener -> listener.validated(metrics));
+    }
+
+    /**
+     * Call the listeners and log their exceptions, so that a failing listener does not fail the compilation or
+     * validation.
+     */
+    private static void notifyListeners (final Consumer<SchematronListener> call)
+    {
+        for (SchematronListener listener : LISTENERS) {
+            try {
+                call.accept(listener);
+            } catch (RuntimeException e) {
+                LOGGER.log(System.Logger.Level.WARNING, "Listener " + listener.getClass().getName() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Region of code timed by the instrumentation.
+     *
+     * @param <T> Type of the result
+     * @param <E> Type of the exception thrown by the region
+     */
+    @FunctionalInterface
+    interface TimedRegion<T, E extends Exception>
+    {
+        /**
+         * Run the region.
+         *
+         * @return Result of the region
+         * @throws E If the region fails
+         */
+        T run () throws E;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits JDK Flight Recorder events.
+ *
+ * <p>An event is begun at the start of the timed region and ended and committed at its end, so that its duration is
+ * the duration of the region. The events are disabled unless a recording enables them, and events of regions that
+ * fail are not committed.</p>
+ */
+final class JfrListener
+{
+    private static final String CATEGORY = "SchXslt";
+    private static final String SYSTEM_ID = "System Identifier";
+
+    private JfrListener ()
+    {
+    }
+
+    /**
+     * Return true if a recording enabled the validation event.
+     *
+     * @return True if the validation event is enabled
+     */
+    static boolean isValidationEnabled ()
+    {
+        return new ValidationEvent().isEnabled();
+    }
+
+    /**
+     * Begin the event of applying transpiler stylesheets.
+     *
+     * @return The event
+     */
+    static TranspileEvent beginTranspile ()
+    {
+        TranspileEvent event = new TranspileEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End and commit the event of applying transpiler stylesheets.
+     *
+     * @param event Event
+     * @param systemId System identifier of the Schematron or null
+     * @param steps Transpiler stylesheets that were applied
+     */
+    static void endTranspile (final TranspileEvent event, final String systemId, final List<String> steps)
+    {
+        event.end();
+        if (event.shouldCommit()) {
+            event.systemId = systemId;
+            event.steps = String.join(" ", steps);
+            event.commit();
+        }
+    }
+
+    /**
+     * Begin the event of compiling a validation stylesheet to Templates.
+     *
+     * @return The event
+     */
+    static TemplatesEvent beginTemplates ()
+    {
+        TemplatesEvent event = new TemplatesEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End and commit the event of compiling a validation stylesheet to Templates.
+     *
+     * @param event Event
+     * @param systemId System identifier of the validation stylesheet or null
+     */
+    static void endTemplates (final TemplatesEvent event, final String systemId)
+    {
+        event.end();
+        if (event.shouldCommit()) {
+            event.systemId = systemId;
+            event.commit();
+        }
+    }
+
+    /**
+     * Begin the event of validating a document.
+     *
+     * @return The event
+     */
+    static ValidationEvent beginValidation ()
+    {
+        ValidationEvent event = new ValidationEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End and commit the event of validating a document.
+     *
+     * @param event Event
+     * @param metrics Timings and counters of the validation
+     */
+    static void endValidation (final ValidationEvent event, final ValidationMetrics metrics)
+    {
+        event.end();
+        if (event.shouldCommit()) {
+            event.systemId = metrics.getSystemId();
+            event.parseTime = metrics.getParseTime();
+            event.transformTime = metrics.getTransformTime();
+            event.resultTime = metrics.getResultTime();
+            event.inputSize = metrics.getInputSize();
+            event.findingCount = metrics.getFindingCount();
+            event.commit();
+        }
+    }
+
+    /**
+     * Transpiler stylesheets applied to a Schematron.
+     *
+     * <p>The steps of a pipeline chained with SAX events run together and cannot be timed individually. They are
+     * recorded as one event listing all steps. Otherwise every step is recorded on its own.</p>
+     */
+    @Name("name.dmaus.schxslt.Transpile")
+    @Label("Schematron Transpile")
+    @Category(CATEGORY)
+    static final class TranspileEvent extends Event
+    {
+        @Label(SYSTEM_ID)
+        private String systemId;
+
+        @Label("Steps")
+        private String steps;
+    }
+
+    /**
+     * Validation stylesheet compiled to Templates.
+     */
+    @Name("name.dmaus.schxslt.Templates")
+    @Label("Schematron Templates")
+    @Category(CATEGORY)
+    static final class TemplatesEvent extends Event
+    {
+        @Label(SYSTEM_ID)
+        private String systemId;
+    }
+
+    /**
+     * Document validated.
+     */
+    @Name("name.dmaus.schxslt.Validation")
+    @Label("Schematron Validation")
+    @Category(CATEGORY)
+    static final class ValidationEvent extends Event
+    {
+        @Label(SYSTEM_ID)
+        private String systemId;
+
+        @Label("Parse Time")
+        @Timespan(Timespan.NANOSECONDS)
+        private long parseTime;
+
+        @Label("Transform Time")
+        @Timespan(Timespan.NANOSECONDS)
+        private long transformTime;
+
+        @Label("Result Time")
+        @Timespan(Timespan.NANOSECONDS)
+        private long resultTime;
+
+        @Label("Input Size")
+        @DataAmount
+        private long inputSize;
+
+        @Label("Findings")
+        private int findingCount;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Writes the findings of an SVRL report as line-delimited JSON.
+ */
+final class JsonLinesWriter extends DefaultHandler
+{
+    private static final String ID = "id";
+    private static final String TEXT = "text";
+    private static final String CONTEXT = "context";
+    private static final String ROLE = "role";
+    private static final String FLAG = "flag";
+    private static final String LOCATION = "location";
+    private static final String TEST = "test";
+    private static final int FIRST_PRINTABLE = 0x20;
+
+    private final Writer output;
+    private final StringBuilder line = new StringBuilder();
+    private final StringBuilder text = new StringBuilder();
+
+    private String pattern;
+    private String rule;
+    private String context;
+    private String kind;
+    private Attributes finding;
+    private int depth;
+    private boolean inText;
+    private boolean hasText;
+
+    JsonLinesWriter (final Writer output)
+    {
+        this.output = output;
+    }
+
+    @Override
+    public void startElement (final String uri, final String localName, final String qName, final Attributes attributes)
+    {
+        if (kind != null) {
+            depth++;
+            if (depth == 2 && !hasText && isSvrl(uri, localName, TEXT)) {
+                inText = true;
+                hasText = true;
+            }
+        } else if (isSvrl(uri, localName, "active-pattern")) {
+            pattern = attributes.getValue(ID);
+            rule = null;
+            context = null;
+        } else if (isSvrl(uri, localName, "fired-rule")) {
+            rule = attributes.getValue(ID);
+            context = attributes.getValue(CONTEXT);
+        } else if (isSvrl(uri, localName, Finding.Kind.FAILED_ASSERT.getName()) || isSvrl(uri, localName, Finding.Kind.SUCCESSFUL_REPORT.getName())) {
+            kind = localName;
+            finding = new AttributesImpl(attributes);
+            depth = 1;
+        }
+    }
+
+    @Override
+    public void characters (final char[] characters, final int start, final int length)
+    {
+        if (inText) {
+            text.append(characters, start, length);
+        }
+    }
+
+    @Override
+    public void endElement (final String uri, final String localName, final String qName) throws SAXException
+    {
+        if (kind != null) {
+            if (depth == 2 && inText && isSvrl(uri, localName, TEXT)) {
+                inText = false;
+            }
+            depth--;
+            if (depth == 0) {
+                writeFinding();
+            }
+        }
+    }
+
+    @Override
+    public void endDocument () throws SAXException
+    {
+        try {
+            output.flush();
+        } catch (IOException e) {
+            throw new WriteException(e);
+        }
+    }
+
+    private void writeFinding () throws SAXException
+    {
+        line.setLength(0);
+        line.append('{');
+        appendMember("kind", kind);
+        appendMember(ID, finding.getValue(ID));
+        appendMember(ROLE, finding.getValue(ROLE));
+        appendMember(FLAG, finding.getValue(FLAG));
+        appendMember(LOCATION, finding.getValue(LOCATION));
+        appendMember(TEST, finding.getValue(TEST));
+        appendMember("pattern", pattern);
+        appendMember("rule", rule);
+        appendMember(CONTEXT, context);
+        if (hasText) {
+            appendMember(TEXT, text.toString());
+        }
+        line.append("}\n");
+        try {
+            output.write(line.toString());
+        } catch (IOException e) {
+            throw new WriteException(e);
+        }
+        kind = null;
+        finding = null;
+        hasText = false;
+        text.setLength(0);
+    }
+
+    private void appendMember (final String name, final String value)
+    {
+        if (value != null) {
+            if (line.length() > 1) {
+                line.append(',');
+            }
+            appendString(name);
+            line.append(':');
+            appendString(value);
+        }
+    }
+
+    private void appendString (final String value)
+    {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char character = value.charAt(i);
+            if (character == '"' || character == '\\') {
+                line.append('\\').append(character);
+            } else if (character < FIRST_PRINTABLE) {
+                line.append(String.format("\\u%04x", (int)character));
+            } else {
+                line.append(character);
+            }
+        }
+        line.append('"');
+    }
+
+    private static boolean isSvrl (final String uri, final String localName, final String name)
+    {
+        return ReportHandler.SVRL.equals(uri) && name.equals(localName);
+    }
+
+    /**
+     * Failure to write to the output stream.
+     */
+    private static final class WriteException extends SAXException
+    {
+        private static final long serialVersionUID = 1L;
+
+        WriteException (final IOException cause)
+        {
+            super("Unable to write the validation report", cause);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Rewrites lookups of elements by value in a validation stylesheet to key lookups.
+ *
+ * <p>Schematron rules often look up the element another element refers to with an expression like
+ * {@code //item[@id = current()/@ref]}. The expression scans the whole document for every context node. The optimizer
+ * replaces such a lookup in the {@code test} and {@code select} attributes of the stylesheet by
+ * {@code key('schxslt-java:key-0', current()/@ref)} and declares the key. Lookups of the same elements by the same
+ * value share a key.</p>
+ *
+ * <p>A lookup is only rewritten if it starts at the root of the document, its single predicate compares a relative
+ * path without predicates to a path starting with {@code current()}, and it is not followed by another predicate.
+ * The values are then compared as strings and the key returns the same elements in document order.</p>
+ */
+@NotThreadSafe
+final class KeyOptimizer
+{
+    private static final String XSL = "http://www.w3.org/1999/XSL/Transform";
+    private static final String NAMESPACE = "http://dmaus.name/ns/schxslt-java";
+    private static final String PREFIX = "schxslt-java";
+
+    private static final String NAME = "[\\w.-]+(?::[\\w.-]+)?";
+    private static final String PATH = "@?" + NAME + "(?:/@?" + NAME + ")*";
+    private static final String CURRENT = "current\\(\\)/" + PATH;
+    private static final String EQUALS = ")\\s*=\\s*(";
+    private static final Pattern LOOKUP = Pattern.compile("//(" + NAME + ")\\[\\s*(?:(" + PATH + EQUALS + CURRENT + ")|(" + CURRENT + EQUALS + PATH + "))\\s*\\]");
+    private static final Pattern START = Pattern.compile("(^|[(,\\[=<>!+|{]|\\b(and|or))\\s*$");
+    private static final Pattern LITERAL = Pattern.compile("'[^']*'|\"[^\"]*\"");
+    private static final Pattern PREFIXED_NAME = Pattern.compile("([\\w.-]+):[\\w.-]+");
+
+    private static final int MATCH = 1;
+    private static final int USE = 2;
+    private static final int VALUE = 3;
+    private static final int REVERSED_VALUE = 4;
+    private static final int REVERSED_USE = 5;
+
+    private final Document stylesheet;
+    private final Map<String, String> keys = new HashMap<String, String>();
+    private int lookups;
+
+    KeyOptimizer (final Document stylesheet)
+    {
+        this.stylesheet = stylesheet;
+    }
+
+    /**
+     * Rewrite the lookups of the stylesheet.
+     *
+     * @return Number of rewritten lookups
+     */
+    int optimize ()
+    {
+        List<Attr> expressions = new ArrayList<Attr>();
+        NodeList elements = stylesheet.getElementsByTagNameNS(XSL, "*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element)elements.item(i);
+            addExpression(expressions, element.getAttributeNode("test"));
+            addExpression(expressions, element.getAttributeNode("select"));
+        }
+        for (Attr expression : expressions) {
+            String rewritten = rewrite(expression.getOwnerElement(), expression.getValue());
+            if (!rewritten.equals(expression.getValue())) {
+                expression.setValue(rewritten);
+            }
+        }
+        return lookups;
+    }
+
+    private static void addExpression (final List<Attr> expressions, final Attr expression)
+    {
+        if (expression != null && expression.getValue().contains("//")) {
+            expressions.add(expression);
+        }
+    }
+
+    private String rewrite (final Element element, final String expression)
+    {
+        StringBuilder rewritten = new StringBuilder();
+        int last = 0;
+        Matcher lookup = LOOKUP.matcher(expression);
+        while (lookup.find()) {
+            String key = null;
+            if (isLookup(expression, lookup)) {
+                key = getKey(element, lookup);
+            }
+            if (key != null) {
+                rewritten.append(expression, last, lookup.start()).append("key('").append(key).append("', ").append(getValue(lookup)).append(')');
+                last = lookup.end();
+                lookups++;
+            }
+        }
+        return rewritten.append(expression, last, expression.length()).toString();
+    }
+
+    /**
+     * Return true if a match starts a path expression outside of a string literal and is not followed by a predicate.
+     */
+    private static boolean isLookup (final String expression, final Matcher lookup)
+    {
+        boolean literal = false;
+        Matcher literals = LITERAL.matcher(expression);
+        while (literals.find() && literals.start() < lookup.start()) {
+            literal |= literals.end() > lookup.start();
+        }
+        String rest = expression.substring(lookup.end()).trim();
+        return !literal && START.matcher(expression.substring(0, lookup.start())).find() && !rest.startsWith("[");
+    }
+
+    private static String getValue (final Matcher lookup)
+    {
+        String value = lookup.group(VALUE);
+        if (value == null) {
+            value = lookup.group(REVERSED_VALUE);
+        }
+        return value;
+    }
+
+    /**
+     * Return the name of the key for a lookup, declaring the key if necessary, or null if a prefix is not bound.
+     */
+    private String getKey (final Element element, final Matcher lookup)
+    {
+        String match = lookup.group(MATCH);
+        String use = lookup.group(USE);
+        if (use == null) {
+            use = lookup.group(REVERSED_USE);
+        }
+
+        Map<String, String> namespaces = new TreeMap<String, String>();
+        boolean bound = bind(element, match, namespaces) && bind(element, use, namespaces);
+        String name = null;
+        if (bound) {
+            String identity = match + ' ' + use + ' ' + namespaces;
+            name = keys.get(identity);
+            if (name == null) {
+                name = declare(match, use, namespaces);
+                keys.put(identity, name);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Add the namespaces of the prefixes used in a path and return false if a prefix is not bound.
+     */
+    private static boolean bind (final Element element, final String path, final Map<String, String> namespaces)
+    {
+        boolean bound = true;
+        Matcher name = PREFIXED_NAME.matcher(path);
+        while (name.find()) {
+            String namespace = element.lookupNamespaceURI(name.group(1));
+            if (namespace == null) {
+                bound = false;
+            } else {
+                namespaces.put(name.group(1), namespace);
+            }
+        }
+        return bound;
+    }
+
+    private String declare (final String match, final String use, final Map<String, String> namespaces)
+    {
+        Element transform = stylesheet.getDocumentElement();
+        transform.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE + ':' + PREFIX, NAMESPACE);
+
+        String name = PREFIX + ":key-" + keys.size();
+        Element key = stylesheet.createElementNS(XSL, "xsl:key");
+        for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+            key.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE + ':' + namespace.getKey(), namespace.getValue());
+        }
+        key.setAttribute("name", name);
+        key.setAttribute("match", match);
+        key.setAttribute("use", use);
+        transform.appendChild(key);
+        return name;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Static analysis of the dependencies of a Schematron's rules.
+ *
+ * <p>The rules of a Schematron are local if the findings for an element only depend on the element, its descendants,
+ * and the names and attributes of its ancestors. The analysis is conservative: the rules are not local if any
+ * expression navigates to the parent, the ancestors, the siblings, or the root of a node, looks up nodes by id or key,
+ * uses positional predicates in a rule context, or if the schema declares a global variable that is not a constant,
+ * a pattern over other documents, or embeds XSLT.</p>
+ *
+ * <p>The analysis also collects the element names the rule contexts can match. They are used to find out if a rule
+ * fires on the ancestors of a changed subtree and thus depends on the subtree.</p>
+ */
+@Immutable
+final class LocalityAnalysis
+{
+    private static final String SCHEMATRON = "http://purl.oclc.org/dsdl/schematron";
+    private static final String XSLT = "http://www.w3.org/1999/XSL/Transform";
+    private static final String ANY = "*";
+    private static final String CONTEXT = "context";
+    private static final String VALUE = "value";
+    private static final String EMPTY_LITERAL = "''";
+
+    private static final Set<String> EXPRESSIONS = Set.of("test", "select", "path", VALUE, "subject");
+    private static final Set<String> GLOBAL_SCOPES = Set.of("schema", "pattern", "phase");
+
+    private static final Pattern LITERAL = Pattern.compile("'[^']*'|\"[^\"]*\"");
+    private static final Pattern CONSTANT = Pattern.compile("\\s*([-+]?\\d+(\\.\\d+)?|true\\(\\)|false\\(\\))?\\s*");
+    private static final Pattern NON_LOCAL = Pattern.compile("(?<![\\w.-])(ancestor|ancestor-or-self|parent|preceding|preceding-sibling|following|following-sibling)::"
+                                                             + "|\\.\\."
+                                                             + "|(?<![\\w.-])(root|id|idref|element-with-id|key|path)\\s*\\(");
+    private static final Pattern ABSOLUTE = Pattern.compile("(^|[\\s(,\\[=<>!+|-])/");
+    private static final Pattern POSITIONAL = Pattern.compile("\\[\\s*\\d+\\s*\\]|(?<![\\w.-])(position|last)\\s*\\(");
+    private static final Pattern NAME = Pattern.compile("(Q\\{[^}]*\\}|[\\w.-]+:|\\*:)?([\\w.-]+|\\*)");
+    private static final Pattern NON_ELEMENT = Pattern.compile("@.*|attribute::.*|attribute\\(.*|text\\(\\)|comment\\(\\)|processing-instruction\\(.*|namespace::.*");
+
+    private final boolean local;
+    private final boolean matchesRoot;
+    private final List<QName> contextNames;
+
+    private LocalityAnalysis (final Collector collector)
+    {
+        this.local = collector.local;
+        this.matchesRoot = collector.matchesRoot;
+        this.contextNames = List.copyOf(collector.contextNames);
+    }
+
+    /**
+     * Analyze a Schematron and all documents it includes.
+     *
+     * @param schematron Schematron document
+     * @param transformerFactory TransformerFactory to load the included documents with
+     * @return The analysis
+     * @throws SchematronException If an included document cannot be read
+     */
+    static LocalityAnalysis analyze (final Document schematron, final TransformerFactory transformerFactory) throws SchematronException
+    {
+        List<Document> documents = new ArrayList<Document>();
+        documents.add(schematron);
+        SchemaDigest digest = new SchemaDigest(transformerFactory);
+        digest.update(schematron);
+        for (String systemId : digest.getDocuments()) {
+            if (!systemId.equals(schematron.getDocumentURI())) {
+                documents.add(Compiler.load(transformerFactory, new StreamSource(systemId)));
+            }
+        }
+
+        Collector collector = new Collector();
+        for (Document document : documents) {
+            collector.collectNamespaces(document);
+        }
+        for (Document document : documents) {
+            NodeList elements = document.getElementsByTagNameNS(ANY, ANY);
+            for (int i = 0; i < elements.getLength(); i++) {
+                collector.collect((Element)elements.item(i));
+            }
+        }
+        return new LocalityAnalysis(collector);
+    }
+
+    /**
+     * Return true if the rules are local.
+     *
+     * @return True if the rules are local
+     */
+    boolean isLocal ()
+    {
+        return local;
+    }
+
+    /**
+     * Return true if a rule context might match the root node or an element with one of the given names.
+     *
+     * @param names Element names
+     * @return True if a rule might fire
+     */
+    boolean matchesAny (final Set<QName> names)
+    {
+        boolean matches = matchesRoot;
+        for (QName name : names) {
+            for (QName contextName : contextNames) {
+                matches |= matches(contextName, name);
+            }
+        }
+        return matches;
+    }
+
+    private static boolean matches (final QName contextName, final QName name)
+    {
+        return (ANY.equals(contextName.getNamespaceURI()) || contextName.getNamespaceURI().equals(name.getNamespaceURI()))
+            && (ANY.equals(contextName.getLocalPart()) || contextName.getLocalPart().equals(name.getLocalPart()));
+    }
+
+    /**
+     * Remove string literals and predicates from an expression.
+     */
+    private static String stripPredicates (final String expression)
+    {
+        StringBuilder stripped = new StringBuilder();
+        int nesting = 0;
+        for (char character : LITERAL.matcher(expression).replaceAll(EMPTY_LITERAL).toCharArray()) {
+            if (character == '[') {
+                nesting++;
+            } else if (character == ']') {
+                nesting--;
+            } else if (nesting == 0) {
+                stripped.append(character);
+            }
+        }
+        return stripped.toString();
+    }
+
+    /**
+     * Collects the results of the analysis.
+     */
+    private static final class Collector
+    {
+        private final Map<String, String> namespaces = new HashMap<String, String>();
+        private final List<QName> contextNames = new ArrayList<QName>();
+        private boolean local = true;
+        private boolean matchesRoot;
+
+        void collectNamespaces (final Document document)
+        {
+            NodeList declarations = document.getElementsByTagNameNS(SCHEMATRON, "ns");
+            for (int i = 0; i < declarations.getLength(); i++) {
+                Element declaration = (Element)declarations.item(i);
+                namespaces.put(declaration.getAttribute("prefix"), declaration.getAttribute("uri"));
+            }
+        }
+
+        void collect (final Element element)
+        {
+            if (XSLT.equals(element.getNamespaceURI())) {
+                local = false;
+            } else if (SCHEMATRON.equals(element.getNamespaceURI())) {
+                if (element.hasAttribute(CONTEXT)) {
+                    collectContext(element.getAttribute(CONTEXT));
+                }
+                for (String attribute : EXPRESSIONS) {
+                    if (element.hasAttribute(attribute)) {
+                        checkExpression(element.getAttribute(attribute));
+                    }
+                }
+                if ("let".equals(element.getLocalName())) {
+                    checkVariable(element);
+                }
+                if (element.hasAttribute("documents")) {
+                    local = false;
+                }
+            }
+        }
+
+        /**
+         * Check that a global variable is a constant, for it is evaluated with the root of the fragment.
+         */
+        private void checkVariable (final Element variable)
+        {
+            Node parent = variable.getParentNode();
+            boolean global = SCHEMATRON.equals(parent.getNamespaceURI()) && GLOBAL_SCOPES.contains(parent.getLocalName());
+            if (global && !(variable.hasAttribute(VALUE) && CONSTANT.matcher(LITERAL.matcher(variable.getAttribute(VALUE)).replaceAll("")).matches())) {
+                local = false;
+            }
+        }
+
+        private void checkExpression (final String expression)
+        {
+            String code = LITERAL.matcher(expression).replaceAll(EMPTY_LITERAL);
+            if (NON_LOCAL.matcher(code).find() || ABSOLUTE.matcher(code).find()) {
+                local = false;
+            }
+        }
+
+        private void collectContext (final String context)
+        {
+            String code = LITERAL.matcher(context).replaceAll(EMPTY_LITERAL);
+            if (NON_LOCAL.matcher(code).find() || POSITIONAL.matcher(code).find()) {
+                local = false;
+            }
+            for (String alternative : stripPredicates(context).split("\\|")) {
+                collectStep(alternative.trim().substring(alternative.trim().lastIndexOf('/') + 1));
+            }
+        }
+
+        /**
+         * Collect the element name matched by the last step of a rule context.
+         */
+        private void collectStep (final String step)
+        {
+            String test = step.replaceFirst("^(child|descendant|descendant-or-self|self)::", "");
+            if (test.isEmpty() || test.startsWith("document-node(")) {
+                matchesRoot = true;
+            } else if (!NON_ELEMENT.matcher(test).matches()) {
+                contextNames.add(getName(test));
+            }
+        }
+
+        private QName getName (final String test)
+        {
+            Matcher name = NAME.matcher(test);
+            QName contextName = new QName(ANY, ANY);
+            if (name.matches()) {
+                String prefix = name.group(1);
+                if (prefix == null && ANY.equals(name.group(2))) {
+                    prefix = ANY;
+                }
+                contextName = new QName(getNamespace(prefix), name.group(2));
+            }
+            return contextName;
+        }
+
+        private String getNamespace (final String prefix)
+        {
+            String namespace;
+            if (prefix == null) {
+                namespace = "";
+            } else if (ANY.equals(prefix)) {
+                namespace = ANY;
+            } else if (prefix.startsWith("Q{")) {
+                namespace = prefix.substring(2, prefix.length() - 1);
+            } else {
+                namespace = namespaces.getOrDefault(prefix.substring(0, prefix.length() - 1), ANY);
+            }
+            return namespace;
+        }
+    }
+}
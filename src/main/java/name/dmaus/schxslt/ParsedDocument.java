@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+
+import org.w3c.dom.Document;
+
+import org.xml.sax.InputSource;
+
+import org.xmlresolver.tools.ResolvingXMLReader;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Document that is parsed once and validated against many schemas.
+ *
+ * <p>With Saxon the document is parsed into a read-only TinyTree that is shared by concurrent validations. The tree
+ * can only be validated by Schematron instances using the same TransformerFactory that parsed the document, by
+ * default the shared default factory. Other XSLT processors receive the document as a DOM tree. A DOM tree is not
+ * safe for concurrent use, so its validations run one after another.</p>
+ */
+@ThreadSafe
+public final class ParsedDocument
+{
+    private static final String SAXON_TRANSFORMER_FACTORY = "net.sf.saxon.jaxp.SaxonTransformerFactory";
+
+    private final Source tree;
+    private final Document document;
+
+    private ParsedDocument (final Source tree, final Document document)
+    {
+        this.tree = tree;
+        this.document = document;
+    }
+
+    /**
+     * Parse a document with the default TransformerFactory.
+     *
+     * @param source Document source
+     * @return The parsed document
+     * @throws SchematronException If the document cannot be parsed
+     */
+    public static ParsedDocument parse (final Source source) throws SchematronException
+    {
+        return parse(source, Compiler.getDefaultTransformerFactory());
+    }
+
+    /**
+     * Parse a document with a TransformerFactory.
+     *
+     * @param source Document source
+     * @param transformerFactory TransformerFactory of the Schematron instances validating the document
+     * @return The parsed document
+     * @throws SchematronException If the document cannot be parsed
+     */
+    public static ParsedDocument parse (final Source source, final TransformerFactory transformerFactory) throws SchematronException
+    {
+        if (source == null) {
+            throw new IllegalArgumentException("Source may not be null");
+        }
+
+        Source input = source;
+        InputSource inputSource = SAXSource.sourceToInputSource(source);
+        if (inputSource != null) {
+            input = new SAXSource(new ResolvingXMLReader(SharedResolver.getDefault().getXMLResolver()), inputSource);
+        }
+
+        ParsedDocument parsedDocument;
+        if (isSaxon(transformerFactory)) {
+            parsedDocument = new ParsedDocument(SaxonTreeBuilder.build(transformerFactory, input), null);
+        } else {
+            parsedDocument = new ParsedDocument(null, Compiler.load(transformerFactory, input));
+        }
+        return parsedDocument;
+    }
+
+    /**
+     * Return a source reading the parsed document.
+     *
+     * @return Source of the parsed document
+     */
+    public Source asSource ()
+    {
+        if (tree != null) {
+            return tree;
+        }
+        return new DOMSource(document, document.getDocumentURI());
+    }
+
+    /**
+     * Validate the document against many schemas using the default executor.
+     *
+     * @param schemas Schemas to validate against
+     * @return One future validation result per schema, in the order of the schemas
+     * @see #validateAll(Iterable, Map, Executor)
+     */
+    public List<CompletableFuture<Result>> validateAll (final Iterable<Schematron> schemas)
+    {
+        return validateAll(schemas, null, DefaultExecutor.get());
+    }
+
+    /**
+     * Validate the document against many schemas.
+     *
+     * <p>Validations of a TinyTree run in parallel on the executor. Validations of a DOM tree run one after another
+     * in the calling thread and the returned futures are already complete.</p>
+     *
+     * @param schemas Schemas to validate against
+     * @param parameters Parameters for the validation stylesheets
+     * @param executor Executor running the validations
+     * @return One future validation result per schema, in the order of the schemas
+     */
+    public List<CompletableFuture<Result>> validateAll (final Iterable<Schematron> schemas, final Map<String, Object> parameters, final Executor executor)
+    {
+        Executor validations = executor;
+        if (tree == null) {
+            validations = Runnable::run;
+        }
+
+        final List<CompletableFuture<Result>> results = new ArrayList<CompletableFuture<Result>>();
+        for (Schematron schematron : schemas) {
+            results.add(CompletableFuture.supplyAsync(() -> schematron.validateUnchecked(asSource(), parameters), validations));
+        }
+        return results;
+    }
+
+    /**
+     * Return true if a TransformerFactory is a Saxon factory.
+     *
+     * <p>The factory is identified by the name of its class, so that Saxon is not loaded unless it is used.</p>
+     *
+     * @param transformerFactory TransformerFactory
+     * @return True if the factory is a Saxon factory
+     */
+    static boolean isSaxon (final TransformerFactory transformerFactory)
+    {
+        Class<?> factoryClass = transformerFactory.getClass();
+        while (factoryClass != null && !SAXON_TRANSFORMER_FACTORY.equals(factoryClass.getName())) {
+            factoryClass = factoryClass.getSuperclass();
+        }
+        return factoryClass != null;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Lets a validation stylesheet select the Schematron phase at validation time.
+ *
+ * <p>The Schematron is compiled with all patterns. Afterwards every pattern of the validation stylesheet is guarded
+ * by a global variable that is true if the pattern is active in the phase given by the stylesheet parameter
+ * {@link #PARAMETER}. The parameter defaults to the default phase of the Schematron.</p>
+ *
+ * <p>The phases are read from the Schematron document itself: phases in included documents are not known. Phases
+ * that declare variables are not supported because their variables are not part of a validation stylesheet that
+ * was compiled with all patterns.</p>
+ */
+final class PhaseSelection
+{
+    static final String RUNTIME_PHASE = "#RUNTIME";
+    static final String PARAMETER = "{http://dmaus.name/ns/schxslt-java}phase";
+
+    private static final String NAMESPACE = "http://dmaus.name/ns/schxslt-java";
+    private static final String PREFIX = "schxslt-java";
+    private static final String PHASE = "phase";
+    private static final String PHASE_VARIABLE = PREFIX + ':' + PHASE;
+    private static final String SCH = "http://purl.oclc.org/dsdl/schematron";
+    private static final String SCHXSLT = "https://doi.org/10.5281/zenodo.1495494";
+    private static final String SVRL = "http://purl.oclc.org/dsdl/svrl";
+    private static final String XSL = "http://www.w3.org/1999/XSL/Transform";
+
+    private static final String ALL = "#ALL";
+    private static final String DEFAULT = "#DEFAULT";
+    private static final String ID = "id";
+    private static final String NAME = "name";
+    private static final String TEST = "test";
+    private static final String TEMPLATE = "template";
+    private static final String PARAM = "param";
+    private static final String IF = "if";
+    private static final String SELECT = "select";
+    private static final String PATTERN = "pattern";
+    private static final String DEFAULT_PHASE = "defaultPhase";
+    private static final String PHASE_REFERENCE = reference(PHASE_VARIABLE);
+
+    private final Map<String, Set<String>> phases = new LinkedHashMap<String, Set<String>>();
+    private final String defaultPhase;
+
+    /**
+     * Read the phases of a Schematron.
+     *
+     * @param schematron Schematron document
+     * @throws SchematronException If a phase declares variables
+     */
+    PhaseSelection (final Document schematron) throws SchematronException
+    {
+        Element schema = schematron.getDocumentElement();
+        for (Element phase : getChildren(schema, SCH, PHASE)) {
+            if (!getChildren(phase, SCH, "let").isEmpty()) {
+                throw new SchematronException("Phase '" + phase.getAttribute(ID) + "' declares variables and cannot be selected at validation time");
+            }
+            Set<String> patterns = new LinkedHashSet<String>();
+            for (Element active : getChildren(phase, SCH, "active")) {
+                patterns.add(active.getAttribute(PATTERN));
+            }
+            phases.put(phase.getAttribute(ID), patterns);
+        }
+        if (schema.hasAttribute(DEFAULT_PHASE)) {
+            defaultPhase = schema.getAttribute(DEFAULT_PHASE);
+        } else {
+            defaultPhase = ALL;
+        }
+    }
+
+    /**
+     * Guard the patterns of a validation stylesheet compiled with all patterns.
+     *
+     * @param stylesheet Validation stylesheet
+     * @throws SchematronException If the patterns of the stylesheet cannot be identified
+     */
+    void instrument (final Document stylesheet) throws SchematronException
+    {
+        List<Element> activePatterns = getActivePatterns(stylesheet);
+        if (activePatterns.isEmpty()) {
+            throw new SchematronException("Unable to identify the patterns of the validation stylesheet, the phase cannot be selected at validation time");
+        }
+
+        Element transform = stylesheet.getDocumentElement();
+        transform.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE + ':' + PREFIX, NAMESPACE);
+        insertDeclaration(transform, getFirstDeclaration(transform), PARAM, PHASE_VARIABLE, "'" + defaultPhase + '\'');
+
+        List<String> conditions = new ArrayList<String>();
+        for (Element activePattern : activePatterns) {
+            conditions.add(createCondition(activePattern.getAttribute(ID)));
+        }
+        guardPatterns(stylesheet, "pattern-", conditions);
+
+        for (Element output : getDescendants(stylesheet, SVRL, "schematron-output")) {
+            output.setAttribute(PHASE, "{" + PHASE_REFERENCE + "}");
+            checkPhase(getAncestor(output, XSL, TEMPLATE));
+        }
+    }
+
+    /**
+     * Return the active pattern elements of a validation stylesheet, one for each pattern in schema order.
+     *
+     * @param stylesheet Validation stylesheet
+     * @return Active pattern elements
+     */
+    static List<Element> getActivePatterns (final Document stylesheet)
+    {
+        return getDescendants(stylesheet, SVRL, "active-pattern");
+    }
+
+    /**
+     * Guard every pattern of a validation stylesheet by a global variable.
+     *
+     * <p>A pattern whose variable is false reports neither its active pattern nor its fired rules and findings, and
+     * the tests of its rules are not evaluated.</p>
+     *
+     * @param stylesheet Validation stylesheet
+     * @param name Prefix of the names of the variables
+     * @param conditions Condition of each pattern, in the order of {@link #getActivePatterns(Document)}
+     */
+    static void guardPatterns (final Document stylesheet, final String name, final List<String> conditions)
+    {
+        List<Element> activePatterns = getActivePatterns(stylesheet);
+        Element transform = stylesheet.getDocumentElement();
+        transform.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE + ':' + PREFIX, NAMESPACE);
+        Node declarations = getFirstDeclaration(transform);
+
+        Map<String, String> patternGuards = new LinkedHashMap<String, String>();
+        for (int i = 0; i < activePatterns.size(); i++) {
+            Element activePattern = activePatterns.get(i);
+            String variable = PREFIX + ':' + name + i;
+            String reference = reference(variable);
+            insertDeclaration(transform, declarations, "variable", variable, conditions.get(i));
+
+            Element pattern = getAncestor(activePattern, SCHXSLT, PATTERN);
+            if (pattern == null) {
+                guardCalls(stylesheet, getAncestor(activePattern, XSL, TEMPLATE).getAttribute(NAME), reference);
+            } else {
+                guard(pattern, reference);
+                patternGuards.put(pattern.getAttribute(ID), reference);
+            }
+        }
+
+        Map<Element, String> ruleGuards = new LinkedHashMap<Element, String>();
+        for (Element rule : getDescendants(stylesheet, SCHXSLT, "rule")) {
+            String test = patternGuards.get(rule.getAttribute(PATTERN));
+            Element template = getAncestor(rule, XSL, TEMPLATE);
+            if (test != null && template != null) {
+                ruleGuards.put(template, test);
+            }
+        }
+        for (Map.Entry<Element, String> ruleGuard : ruleGuards.entrySet()) {
+            guardRule(ruleGuard.getKey(), ruleGuard.getValue());
+        }
+    }
+
+    private String createCondition (final String pattern)
+    {
+        List<String> names = new ArrayList<String>();
+        names.add(ALL);
+        for (Map.Entry<String, Set<String>> phase : phases.entrySet()) {
+            if (phase.getValue().contains(pattern)) {
+                names.add(phase.getKey());
+            }
+        }
+        if (ALL.equals(defaultPhase) || phases.getOrDefault(defaultPhase, Set.of()).contains(pattern)) {
+            names.add(DEFAULT);
+        }
+        return createComparison(names);
+    }
+
+    private static String createComparison (final List<String> names)
+    {
+        StringBuilder condition = new StringBuilder();
+        for (String name : names) {
+            if (condition.length() > 0) {
+                condition.append(" or ");
+            }
+            condition.append(PHASE_REFERENCE).append(" = '").append(name).append('\'');
+        }
+        return condition.toString();
+    }
+
+    /**
+     * Stop the validation if the phase parameter names an unknown phase.
+     */
+    private void checkPhase (final Element template)
+    {
+        List<String> names = new ArrayList<String>(phases.keySet());
+        names.add(ALL);
+        names.add(DEFAULT);
+
+        Document stylesheet = template.getOwnerDocument();
+        Element check = createElement(stylesheet, IF);
+        check.setAttribute(TEST, "not(" + createComparison(names) + ")");
+        Element message = createElement(stylesheet, "message");
+        message.setAttribute("terminate", "yes");
+        message.appendChild(stylesheet.createTextNode("Unknown phase: "));
+        Element value = createElement(stylesheet, "value-of");
+        value.setAttribute(SELECT, PHASE_REFERENCE);
+        message.appendChild(value);
+        check.appendChild(message);
+        template.insertBefore(check, template.getFirstChild());
+    }
+
+    private static void guardCalls (final Document stylesheet, final String name, final String test)
+    {
+        for (Element call : getDescendants(stylesheet, XSL, "call-template")) {
+            if (name.equals(call.getAttribute(NAME))) {
+                guard(call, test);
+            }
+        }
+    }
+
+    private static void guard (final Element element, final String test)
+    {
+        Element guard = createElement(element.getOwnerDocument(), IF);
+        guard.setAttribute(TEST, test);
+        element.getParentNode().replaceChild(guard, element);
+        guard.appendChild(element);
+    }
+
+    /**
+     * Run a rule template only if its pattern is active and otherwise pass on to the next matching template.
+     */
+    private static void guardRule (final Element template, final String test)
+    {
+        Document stylesheet = template.getOwnerDocument();
+        Element when = createElement(stylesheet, "when");
+        when.setAttribute(TEST, test);
+        Element nextMatch = createElement(stylesheet, "next-match");
+
+        Node node = template.getFirstChild();
+        while (node != null) {
+            Node next = node.getNextSibling();
+            if (isXslElement(node, PARAM)) {
+                Element withParam = createElement(stylesheet, "with-param");
+                withParam.setAttribute(NAME, ((Element)node).getAttribute(NAME));
+                withParam.setAttribute(SELECT, reference(((Element)node).getAttribute(NAME)));
+                nextMatch.appendChild(withParam);
+            } else {
+                when.appendChild(node);
+            }
+            node = next;
+        }
+
+        Element otherwise = createElement(stylesheet, "otherwise");
+        otherwise.appendChild(nextMatch);
+        Element choose = createElement(stylesheet, "choose");
+        choose.appendChild(when);
+        choose.appendChild(otherwise);
+        template.appendChild(choose);
+    }
+
+    private static String reference (final String variable)
+    {
+        return "$" + variable;
+    }
+
+    private static void insertDeclaration (final Element transform, final Node before, final String localName, final String name, final String select)
+    {
+        Element declaration = createElement(transform.getOwnerDocument(), localName);
+        declaration.setAttribute(NAME, name);
+        declaration.setAttribute(SELECT, select);
+        transform.insertBefore(declaration, before);
+    }
+
+    private static Node getFirstDeclaration (final Element transform)
+    {
+        Node node = transform.getFirstChild();
+        while (node != null && (node.getNodeType() != Node.ELEMENT_NODE || isXslElement(node, "import"))) {
+            node = node.getNextSibling();
+        }
+        return node;
+    }
+
+    private static Element createElement (final Document stylesheet, final String localName)
+    {
+        return stylesheet.createElementNS(XSL, "xsl:" + localName);
+    }
+
+    private static boolean isXslElement (final Node node, final String localName)
+    {
+        return node.getNodeType() == Node.ELEMENT_NODE && XSL.equals(node.getNamespaceURI()) && localName.equals(node.getLocalName());
+    }
+
+    private static Element getAncestor (final Node node, final String namespaceUri, final String localName)
+    {
+        Node ancestor = node.getParentNode();
+        while (ancestor != null && !(ancestor.getNodeType() == Node.ELEMENT_NODE && namespaceUri.equals(ancestor.getNamespaceURI()) && localName.equals(ancestor.getLocalName()))) {
+            ancestor = ancestor.getParentNode();
+        }
+        return (Element)ancestor;
+    }
+
+    private static List<Element> getChildren (final Element parent, final String namespaceUri, final String localName)
+    {
+        List<Element> children = new ArrayList<Element>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE && namespaceUri.equals(node.getNamespaceURI()) && localName.equals(node.getLocalName())) {
+                children.add((Element)node);
+            }
+        }
+        return children;
+    }
+
+    private static List<Element> getDescendants (final Document document, final String namespaceUri, final String localName)
+    {
+        NodeList nodes = document.getElementsByTagNameNS(namespaceUri, localName);
+        List<Element> elements = new ArrayList<Element>(nodes.getLength());
+        for (int i = 0; i < nodes.getLength(); i++) {
+            elements.add((Element)nodes.item(i));
+        }
+        return elements;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Loads validation stylesheets written by the {@link Precompiler} from the classpath.
+ */
+final class PrecompiledStylesheet
+{
+    private static final String UNABLE_TO_READ = "Unable to read ";
+
+    private PrecompiledStylesheet ()
+    {
+    }
+
+    /**
+     * Load a precompiled validation stylesheet.
+     *
+     * <p>If the metadata of the stylesheet is found next to it, the checksum of the stylesheet is verified.</p>
+     *
+     * @param name Resource name of the validation stylesheet
+     * @param classLoader Class loader finding the resource
+     * @param transformerFactory TransformerFactory compiling the stylesheet
+     * @return The compiled validation stylesheet
+     * @throws SchematronException If the stylesheet is not found, corrupt, or cannot be compiled
+     */
+    static Templates load (final String name, final ClassLoader classLoader, final TransformerFactory transformerFactory) throws SchematronException
+    {
+        String resource = name;
+        if (resource.startsWith("/")) {
+            resource = resource.substring(1);
+        }
+        URL stylesheet = classLoader.getResource(resource);
+        if (stylesheet == null) {
+            throw new SchematronException("Precompiled validation stylesheet not found: " + name);
+        }
+
+        byte[] content = read(stylesheet);
+        String baseName = resource;
+        if (baseName.endsWith(Precompiler.STYLESHEET_SUFFIX)) {
+            baseName = baseName.substring(0, baseName.length() - Precompiler.STYLESHEET_SUFFIX.length());
+        }
+        URL metadata = classLoader.getResource(baseName + Precompiler.METADATA_SUFFIX);
+        if (metadata != null) {
+            String checksum = readMetadata(metadata).getProperty(Precompiler.CHECKSUM);
+            if (checksum != null && !checksum.equals(StylesheetDirectory.checksum(content))) {
+                throw new SchematronException("Checksum mismatch of the precompiled validation stylesheet " + name);
+            }
+        }
+        return Schematron.newTemplates(transformerFactory, new StreamSource(new ByteArrayInputStream(content), stylesheet.toString()));
+    }
+
+    private static Properties readMetadata (final URL metadata) throws SchematronException
+    {
+        Properties properties = new Properties();
+        try {
+            properties.load(new StringReader(new String(read(metadata), StandardCharsets.ISO_8859_1)));
+        } catch (IOException e) {
+            throw new SchematronException(UNABLE_TO_READ + metadata, e);
+        }
+        return properties;
+    }
+
+    private static byte[] read (final URL resource) throws SchematronException
+    {
+        try (InputStream stream = resource.openStream()) {
+            return stream.readAllBytes();
+        } catch (IOException e) {
+            throw new SchematronException(UNABLE_TO_READ + resource, e);
+        }
+    }
+}
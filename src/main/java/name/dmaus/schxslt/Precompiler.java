@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import name.dmaus.schxslt.adapter.Adapter;
+
+import org.w3c.dom.Document;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Compiles Schematron to validation stylesheets ahead of time.
+ *
+ * <p>The validation stylesheet of a Schematron is written to a file {@code name.xsl} and its metadata to a file
+ * {@code name.properties} in the same directory. The metadata records the adapter, phase, compiler options, XSLT
+ * processor, the digest of the Schematron and its included documents, and the checksum of the validation
+ * stylesheet. It does not record the time of compilation, so compiling the same Schematron twice writes the same
+ * files. Packaged in a jar, the validation stylesheet is loaded with {@link Schematron#loadPrecompiled(String)}
+ * without running the transpiler.</p>
+ *
+ * <p>The command line interface is {@link name.dmaus.schxslt.precompiler.Main}.</p>
+ */
+@ThreadSafe
+public final class Precompiler
+{
+    static final String STYLESHEET_SUFFIX = ".xsl";
+    static final String METADATA_SUFFIX = ".properties";
+    static final String CHECKSUM = "checksum";
+
+    private final Adapter adapter;
+    private final TransformerFactory transformerFactory;
+
+    public Precompiler (final Adapter adapter)
+    {
+        this(adapter, null);
+    }
+
+    /**
+     * Create a precompiler.
+     *
+     * @param adapter Transpiler adapter, may not be null
+     * @param transformerFactory TransformerFactory to use, possibly with custom URIResolver
+     */
+    public Precompiler (final Adapter adapter, final TransformerFactory transformerFactory)
+    {
+        if (adapter == null) {
+            throw new IllegalArgumentException("Adapter may not be null");
+        }
+        this.adapter = adapter;
+        if (transformerFactory == null) {
+            this.transformerFactory = Compiler.getDefaultTransformerFactory();
+        } else {
+            this.transformerFactory = transformerFactory;
+        }
+    }
+
+    /**
+     * Compile a Schematron and write the validation stylesheet and its metadata to a directory.
+     *
+     * <p>Schematrons compiled with {@link Schematron#PROFILE_OPTION} cannot be precompiled because their profiler is
+     * created at runtime.</p>
+     *
+     * @param schematron Schematron source, may not be null
+     * @param phase Validation phase or null
+     * @param options Compiler options or null
+     * @param directory Directory, created if it does not exist
+     * @param name Name of the validation stylesheet
+     * @return The file of the validation stylesheet
+     * @throws SchematronException If compiling the Schematron or writing the files fails
+     */
+    public Path precompile (final Source schematron, final String phase, final Map<String, Object> options, final Path directory, final String name) throws SchematronException
+    {
+        if (schematron == null) {
+            throw new IllegalArgumentException("Source may not be null");
+        }
+        if (Profiler.newInstance(options) != null) {
+            throw new IllegalArgumentException("A profiled Schematron cannot be precompiled");
+        }
+
+        Document document = Compiler.load(transformerFactory, schematron);
+        Document stylesheet = Schematron.compile(adapter, transformerFactory, new DOMSource(document, document.getDocumentURI()), phase, options);
+        final byte[] content = serialize(stylesheet);
+
+        Map<String, String> metadata = new LinkedHashMap<String, String>();
+        metadata.put("adapter", adapter.getClass().getName());
+        if (phase != null) {
+            metadata.put("phase", phase);
+        }
+        if (options != null) {
+            for (Map.Entry<String, Object> option : options.entrySet()) {
+                metadata.put("option." + option.getKey(), String.valueOf(option.getValue()));
+            }
+        }
+        metadata.put("processor", getProcessor());
+        metadata.put("digest", SchematronCache.createKey(document, adapter, phase, transformerFactory, options));
+        metadata.put(CHECKSUM, StylesheetDirectory.checksum(content));
+
+        Path file = directory.resolve(name + STYLESHEET_SUFFIX);
+        try {
+            Files.createDirectories(directory);
+            Files.write(file, content);
+            Files.writeString(directory.resolve(name + METADATA_SUFFIX), formatMetadata(metadata), StandardCharsets.ISO_8859_1);
+        } catch (IOException e) {
+            throw new SchematronException("Unable to write the precompiled validation stylesheet " + file, e);
+        }
+        return file;
+    }
+
+    private String getProcessor ()
+    {
+        return transformerFactory.getClass().getName() + ' ' + ProcessorVersion.of(transformerFactory);
+    }
+
+    private byte[] serialize (final Document stylesheet) throws SchematronException
+    {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            transformerFactory.newTransformer().transform(new DOMSource(stylesheet), new StreamResult(buffer));
+            return buffer.toByteArray();
+        } catch (TransformerException e) {
+            throw new SchematronException("Unable to serialize the validation stylesheet", e);
+        }
+    }
+
+    /**
+     * Format the metadata as properties file without the timestamp written by {@link Properties#store}.
+     */
+    private static String formatMetadata (final Map<String, String> metadata) throws IOException
+    {
+        Properties properties = new Properties();
+        properties.putAll(metadata);
+        StringWriter buffer = new StringWriter();
+        properties.store(buffer, null);
+
+        List<String> lines = new ArrayList<String>();
+        for (String line : buffer.toString().split("\\R")) {
+            if (!line.startsWith("#")) {
+                lines.add(line);
+            }
+        }
+        Collections.sort(lines);
+        return String.join("\n", lines) + '\n';
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.function.Consumer;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+
+/**
+ * Receives the probes of a validation stylesheet instrumented by the {@link Profiler}.
+ *
+ * <p>The probes are messages sent by xsl:message. They are passed to the profiler active on the current thread,
+ * other messages are passed on to the message handler the transformer had before, or to Saxon's standard message
+ * handler if it had none.</p>
+ */
+final class ProbeHandler implements Consumer<Object>
+{
+    private final Consumer<Object> messageHandler;
+
+    private ProbeHandler (final Consumer<Object> messageHandler)
+    {
+        this.messageHandler = messageHandler;
+    }
+
+    /**
+     * Receive the messages of a Saxon transformer.
+     *
+     * @param transformer Saxon transformer
+     * @throws TransformerException If the message handler cannot be installed
+     */
+    static void install (final Transformer transformer) throws TransformerException
+    {
+        SaxonReflection.setMessageHandler(transformer, new ProbeHandler(SaxonReflection.getMessageHandler(transformer)));
+    }
+
+    /**
+     * Receive a Saxon message.
+     *
+     * @param message Saxon message
+     */
+    @Override
+    public void accept (final Object message)
+    {
+        String text;
+        try {
+            text = (String)SaxonReflection.invoke(message, "getStringValue");
+        } catch (TransformerException e) {
+            throw new IllegalStateException("Unable to read a Saxon message", e);
+        }
+        if (Profiler.ENTER.equals(text)) {
+            Profiler.enter();
+        } else if (text.startsWith(Profiler.LEAVE)) {
+            Profiler.leave(Integer.parseInt(text.substring(Profiler.LEAVE.length()).trim()));
+        } else {
+            messageHandler.accept(message);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSource;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+
+/**
+ * Identifies the version of the XSLT processor a TransformerFactory belongs to.
+ *
+ * <p>The version is the implementation version of the factory's package. Without one it is Saxon's product version,
+ * the checksum of the jar holding the factory, or the version of the Java runtime for factories of the runtime,
+ * whichever is found first. Versions are computed once per factory class.</p>
+ */
+final class ProcessorVersion
+{
+    private static final ClassValue<String> VERSIONS = new ClassValue<String>() {
+        @Override
+        protected String computeValue (final Class<?> type)
+        {
+            return getVersion(type);
+        }
+    };
+
+    private ProcessorVersion ()
+    {
+    }
+
+    /**
+     * Return the version of the XSLT processor.
+     *
+     * @param transformerFactory TransformerFactory of the processor
+     * @return The version
+     */
+    static String of (final TransformerFactory transformerFactory)
+    {
+        return VERSIONS.get(transformerFactory.getClass());
+    }
+
+    private static String getVersion (final Class<?> type)
+    {
+        String version = type.getPackage().getImplementationVersion();
+        if (version == null && type.getName().startsWith("net.sf.saxon.")) {
+            try {
+                version = SaxonReflection.getProductVersion(type);
+            } catch (TransformerException e) {
+                version = null;
+            }
+        }
+        if (version == null) {
+            version = getLocationVersion(type);
+        }
+        return version;
+    }
+
+    private static String getLocationVersion (final Class<?> type)
+    {
+        String version = "java " + Runtime.version();
+        CodeSource codeSource = type.getProtectionDomain().getCodeSource();
+        if (codeSource != null && codeSource.getLocation() != null) {
+            URL location = codeSource.getLocation();
+            version = location.toString();
+            try {
+                Path file = Path.of(location.toURI());
+                if (Files.isRegularFile(file)) {
+                    version = StylesheetDirectory.checksum(Files.readAllBytes(file));
+                }
+            } catch (IOException | URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+                version = location.toString();
+            }
+        }
+        return version;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Number of executions and cumulative time of a pattern, rule, assert or report.
+ *
+ * <p>The time of a rule includes the time of its asserts and reports, and the time of a pattern is the sum of its
+ * rules. Times are in nanoseconds and include the time to create the validation report.</p>
+ */
+@Immutable
+public final class ProfileEntry
+{
+    private final Kind kind;
+    private final String pattern;
+    private final String context;
+    private final String id;
+    private final String test;
+    private final long count;
+    private final long time;
+
+    ProfileEntry (final Kind kind, final String pattern, final String context, final String id, final String test, final long count, final long time)
+    {
+        this.kind = kind;
+        this.pattern = pattern;
+        this.context = context;
+        this.id = id;
+        this.test = test;
+        this.count = count;
+        this.time = time;
+    }
+
+    /**
+     * Return the kind of the entry.
+     *
+     * @return Kind of the entry
+     */
+    public Kind getKind ()
+    {
+        return kind;
+    }
+
+    /**
+     * Return the id of the pattern.
+     *
+     * @return Id of the pattern or an identifier generated by the compiler if the pattern has no id
+     */
+    public String getPattern ()
+    {
+        return pattern;
+    }
+
+    /**
+     * Return the context of the rule.
+     *
+     * @return Rule context or null for a pattern
+     */
+    public String getContext ()
+    {
+        return context;
+    }
+
+    /**
+     * Return the id of the rule, assert or report.
+     *
+     * @return Id or null if there is none
+     */
+    public String getId ()
+    {
+        return id;
+    }
+
+    /**
+     * Return the test of the assert or report.
+     *
+     * @return Test or null for a pattern or rule
+     */
+    public String getTest ()
+    {
+        return test;
+    }
+
+    /**
+     * Return how often the rule fired or the assert or report was tested.
+     *
+     * @return Number of executions
+     */
+    public long getCount ()
+    {
+        return count;
+    }
+
+    /**
+     * Return the cumulative time of all executions.
+     *
+     * @return Time in nanoseconds
+     */
+    public long getTime ()
+    {
+        return time;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return String.format("%s %s %s %s %s %d %d", kind, pattern, context, id, test, count, time);
+    }
+
+    /**
+     * Kind of a profile entry.
+     */
+    public enum Kind
+    {
+        PATTERN, RULE, ASSERT, REPORT
+    }
+}
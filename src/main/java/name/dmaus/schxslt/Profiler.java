@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Profiles the rules, asserts and reports of a validation stylesheet.
+ *
+ * <p>The validation stylesheet is instrumented with the messages {@link #ENTER} and {@link #LEAVE} around every
+ * fired rule and every assert and report. A {@link ProbeHandler} receives the messages, measures the time in between
+ * and adds it to the profiler that is active on the current thread. Messages outside of a profiled validation do
+ * nothing.</p>
+ *
+ * <p>The end of a rule is measured before the rule passes on to the next rule or to the children of its context
+ * node. The time to match the rule context is spent choosing the rule and is not measured.</p>
+ */
+@ThreadSafe
+final class Profiler
+{
+    static final String ENTER = "{http://dmaus.name/ns/schxslt-java}profile-enter";
+    static final String LEAVE = "{http://dmaus.name/ns/schxslt-java}profile-leave";
+
+    private static final ThreadLocal<Frame> CURRENT = new ThreadLocal<Frame>();
+
+    private static final String SCHXSLT = "https://doi.org/10.5281/zenodo.1495494";
+    private static final String SVRL = "http://purl.oclc.org/dsdl/svrl";
+    private static final String XSL = "http://www.w3.org/1999/XSL/Transform";
+    private static final String ID = "id";
+    private static final String NAME = "name";
+    private static final String PATTERN = "pattern";
+    private static final String TEMPLATE = "template";
+    private static final String SUCCESSFUL_REPORT = "successful-report";
+
+    private final List<Probe> probes = new CopyOnWriteArrayList<Probe>();
+
+    /**
+     * Return a new profiler if the compiler options ask for profiling.
+     *
+     * @param options Compiler options or null
+     * @return The profiler or null
+     */
+    static Profiler newInstance (final Map<String, Object> options)
+    {
+        Profiler profiler = null;
+        if (options != null && Boolean.parseBoolean(String.valueOf(options.get(Schematron.PROFILE_OPTION)))) {
+            profiler = new Profiler();
+        }
+        return profiler;
+    }
+
+    /**
+     * Make a profiler the active profiler of the current thread.
+     *
+     * @param profiler Profiler or null
+     */
+    static void activate (final Profiler profiler)
+    {
+        if (profiler != null) {
+            CURRENT.set(new Frame(profiler));
+        }
+    }
+
+    /**
+     * Stop profiling on the current thread.
+     *
+     * @param profiler Profiler or null
+     */
+    static void deactivate (final Profiler profiler)
+    {
+        if (profiler != null) {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Start measuring a probe.
+     */
+    static void enter ()
+    {
+        Frame frame = CURRENT.get();
+        if (frame != null) {
+            frame.push(System.nanoTime());
+        }
+    }
+
+    /**
+     * Stop measuring a probe and add the time to the probe.
+     *
+     * @param probe Number of the probe
+     */
+    static void leave (final int probe)
+    {
+        Frame frame = CURRENT.get();
+        if (frame != null) {
+            frame.profiler.probes.get(probe).add(System.nanoTime() - frame.pop());
+        }
+    }
+
+    /**
+     * Add probes to a validation stylesheet.
+     *
+     * @param stylesheet Validation stylesheet
+     * @throws SchematronException If the rules of the validation stylesheet cannot be identified
+     */
+    void instrument (final Document stylesheet) throws SchematronException
+    {
+        List<Element> firedRules = getDescendants(stylesheet, SVRL, "fired-rule");
+        if (firedRules.isEmpty()) {
+            throw new SchematronException("Unable to identify the rules of the validation stylesheet, it cannot be profiled");
+        }
+
+        Map<String, String> patterns = getPatterns(stylesheet);
+        for (Element firedRule : firedRules) {
+            Element rule = (Element)firedRule.getParentNode();
+            String pattern;
+            if (SCHXSLT.equals(rule.getNamespaceURI())) {
+                pattern = patterns.get(rule.getAttribute(PATTERN));
+            } else {
+                pattern = patterns.get(getAncestor(firedRule, XSL, TEMPLATE).getAttribute("mode"));
+            }
+            instrumentRule(firedRule, pattern);
+        }
+    }
+
+    /**
+     * Return the profile collected so far.
+     *
+     * @return Profile entries ordered by descending time
+     */
+    List<ProfileEntry> getProfile ()
+    {
+        List<ProfileEntry> entries = new ArrayList<ProfileEntry>();
+        Map<String, long[]> patterns = new LinkedHashMap<String, long[]>();
+        for (Probe probe : probes) {
+            ProfileEntry entry = probe.toEntry();
+            entries.add(entry);
+            if (entry.getKind() == ProfileEntry.Kind.RULE) {
+                long[] total = patterns.computeIfAbsent(entry.getPattern(), key -> new long[2]);
+                total[0] += entry.getCount();
+                total[1] += entry.getTime();
+            }
+        }
+        for (Map.Entry<String, long[]> pattern : patterns.entrySet()) {
+            entries.add(new ProfileEntry(ProfileEntry.Kind.PATTERN, pattern.getKey(), null, pattern.getKey(), null, pattern.getValue()[0], pattern.getValue()[1]));
+        }
+        entries.sort(Comparator.comparingLong(ProfileEntry::getTime).reversed());
+        return entries;
+    }
+
+    /**
+     * Discard the profile collected so far.
+     */
+    void reset ()
+    {
+        for (Probe probe : probes) {
+            probe.reset();
+        }
+    }
+
+    private void instrumentRule (final Element firedRule, final String pattern)
+    {
+        String context = getValue(firedRule, "context");
+        int ruleProbe = addProbe(new Probe(ProfileEntry.Kind.RULE, pattern, context, getValue(firedRule, ID), null));
+        Element rule = (Element)firedRule.getParentNode();
+        rule.insertBefore(createEnter(rule), firedRule);
+
+        Node node = firedRule.getNextSibling();
+        while (node != null && !isXslElement(node, "apply-templates") && !isXslElement(node, "next-match")) {
+            Node next = node.getNextSibling();
+            Element test = getTest(node);
+            if (test != null) {
+                ProfileEntry.Kind kind = ProfileEntry.Kind.ASSERT;
+                if (SUCCESSFUL_REPORT.equals(test.getLocalName())) {
+                    kind = ProfileEntry.Kind.REPORT;
+                }
+                int testProbe = addProbe(new Probe(kind, pattern, context, getValue(test, ID), getValue(test, "test")));
+                rule.insertBefore(createEnter(rule), node);
+                rule.insertBefore(createLeave(rule, testProbe), next);
+            }
+            node = next;
+        }
+        rule.insertBefore(createLeave(rule, ruleProbe), node);
+    }
+
+    private int addProbe (final Probe probe)
+    {
+        probes.add(probe);
+        return probes.size() - 1;
+    }
+
+    /**
+     * Map the generated identifiers of the patterns to their ids.
+     */
+    private static Map<String, String> getPatterns (final Document stylesheet)
+    {
+        Map<String, String> patterns = new LinkedHashMap<String, String>();
+        for (Element activePattern : getDescendants(stylesheet, SVRL, "active-pattern")) {
+            Element pattern = getAncestor(activePattern, SCHXSLT, PATTERN);
+            String generatedId;
+            if (pattern == null) {
+                generatedId = getAncestor(activePattern, XSL, TEMPLATE).getAttribute(NAME);
+            } else {
+                generatedId = pattern.getAttribute(ID);
+            }
+            String id = getValue(activePattern, ID);
+            if (id == null) {
+                id = generatedId;
+            }
+            patterns.put(generatedId, id);
+        }
+        return patterns;
+    }
+
+    /**
+     * Return the assert or report tested by an instruction of a rule.
+     */
+    private static Element getTest (final Node node)
+    {
+        Element test = null;
+        if (node.getNodeType() == Node.ELEMENT_NODE) {
+            for (Element element : getDescendants((Element)node, SVRL)) {
+                if ("failed-assert".equals(element.getLocalName()) || SUCCESSFUL_REPORT.equals(element.getLocalName())) {
+                    test = element;
+                    break;
+                }
+            }
+        }
+        return test;
+    }
+
+    /**
+     * Return the value of an attribute of a literal result element, set literally or with xsl:attribute.
+     */
+    private static String getValue (final Element element, final String name)
+    {
+        String value = null;
+        if (element.hasAttribute(name)) {
+            value = element.getAttribute(name);
+        } else {
+            for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (isXslElement(node, "attribute") && name.equals(((Element)node).getAttribute(NAME))) {
+                    value = node.getTextContent();
+                }
+            }
+        }
+        return value;
+    }
+
+    private static Element createEnter (final Element parent)
+    {
+        return createMessage(parent, ENTER);
+    }
+
+    private static Element createLeave (final Element parent, final int probe)
+    {
+        return createMessage(parent, LEAVE + ' ' + probe);
+    }
+
+    private static Element createMessage (final Element parent, final String text)
+    {
+        Element message = parent.getOwnerDocument().createElementNS(XSL, "xsl:message");
+        message.appendChild(parent.getOwnerDocument().createTextNode(text));
+        return message;
+    }
+
+    private static boolean isXslElement (final Node node, final String localName)
+    {
+        return node.getNodeType() == Node.ELEMENT_NODE && XSL.equals(node.getNamespaceURI()) && localName.equals(node.getLocalName());
+    }
+
+    private static Element getAncestor (final Node node, final String namespaceUri, final String localName)
+    {
+        Node ancestor = node.getParentNode();
+        while (ancestor != null && !(ancestor.getNodeType() == Node.ELEMENT_NODE && namespaceUri.equals(ancestor.getNamespaceURI()) && localName.equals(ancestor.getLocalName()))) {
+            ancestor = ancestor.getParentNode();
+        }
+        return (Element)ancestor;
+    }
+
+    private static List<Element> getDescendants (final Document document, final String namespaceUri, final String localName)
+    {
+        return toList(document.getElementsByTagNameNS(namespaceUri, localName));
+    }
+
+    private static List<Element> getDescendants (final Element element, final String namespaceUri)
+    {
+        return toList(element.getElementsByTagNameNS(namespaceUri, "*"));
+    }
+
+    private static List<Element> toList (final NodeList nodes)
+    {
+        List<Element> elements = new ArrayList<Element>(nodes.getLength());
+        for (int i = 0; i < nodes.getLength(); i++) {
+            elements.add((Element)nodes.item(i));
+        }
+        return elements;
+    }
+
+    /**
+     * Rule, assert or report measured by a probe.
+     */
+    private static final class Probe
+    {
+        private final ProfileEntry.Kind kind;
+        private final String pattern;
+        private final String context;
+        private final String id;
+        private final String test;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder time = new LongAdder();
+
+        Probe (final ProfileEntry.Kind kind, final String pattern, final String context, final String id, final String test)
+        {
+            this.kind = kind;
+            this.pattern = pattern;
+            this.context = context;
+            this.id = id;
+            this.test = test;
+        }
+
+        void add (final long duration)
+        {
+            count.increment();
+            time.add(duration);
+        }
+
+        void reset ()
+        {
+            count.reset();
+            time.reset();
+        }
+
+        ProfileEntry toEntry ()
+        {
+            return new ProfileEntry(kind, pattern, context, id, test, count.sum(), time.sum());
+        }
+    }
+
+    /**
+     * Start times of the probes entered by the current thread.
+     */
+    private static final class Frame
+    {
+        private static final int INITIAL_DEPTH = 8;
+
+        private final Profiler profiler;
+        private long[] starts = new long[INITIAL_DEPTH];
+        private int depth;
+
+        Frame (final Profiler profiler)
+        {
+            this.profiler = profiler;
+        }
+
+        void push (final long start)
+        {
+            if (depth == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * depth);
+            }
+            starts[depth++] = start;
+        }
+
+        long pop ()
+        {
+            return starts[--depth];
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+
+import org.xml.sax.InputSource;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Validates the records of a document one by one.
+ *
+ * <p>The document is read with a streaming parser. Every record element is copied to a fragment document together
+ * with its ancestors, i.e. the start tags of the ancestors with their attributes and namespace declarations. The
+ * fragments are validated in parallel and their reports are merged in document order. At most maxInFlight fragments
+ * and their reports are held in memory.</p>
+ *
+ * <p>Instead of a record element name the splitter can be given the locations of the elements to validate, in the
+ * {@code /Q{uri}local[n]} form of the validation reports. This is used to revalidate the changed subtrees of a
+ * document.</p>
+ */
+@NotThreadSafe
+final class RecordSplitter
+{
+    private static final String ENCODING = "UTF-8";
+
+    private final Schematron schematron;
+    private final QName record;
+    private final Set<String> locations;
+    private final Map<String, Object> parameters;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final ReportMerger merger;
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newFactory();
+    private final Deque<Fragment> pending = new ArrayDeque<Fragment>();
+    private final Set<String> foundLocations = new HashSet<String>();
+    private final Set<QName> ancestorNames = new HashSet<QName>();
+
+    private RecordSplitter (final Schematron schematron, final QName record, final Set<String> locations, final Map<String, Object> parameters, final Executor executor, final int maxInFlight, final ReportMerger merger)
+    {
+        this.schematron = schematron;
+        this.record = record;
+        this.locations = locations;
+        this.parameters = parameters;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.merger = merger;
+    }
+
+    /**
+     * Validate the records of a document.
+     *
+     * @param schematron Schematron validating the records
+     * @param document Document source providing a stream or system identifier
+     * @param record Name of the record element
+     * @param parameters Parameters for the validation stylesheet
+     * @param executor Executor running the validations
+     * @param maxInFlight Maximum number of records validated at the same time
+     * @return Merged validation result
+     * @throws SchematronException If the document cannot be read or a record cannot be validated
+     */
+    static Result validate (final Schematron schematron, final Source document, final QName record, final Map<String, Object> parameters, final Executor executor, final int maxInFlight) throws SchematronException
+    {
+        return new RecordSplitter(schematron, record, null, parameters, executor, maxInFlight, new ReportMerger()).validateFragments(document);
+    }
+
+    /**
+     * Create a splitter validating the elements at the given locations.
+     *
+     * @param schematron Schematron validating the elements
+     * @param locations Locations of the elements, none of them inside another
+     * @param merger Merger the reports of the elements are merged into
+     * @param executor Executor running the validations
+     * @param maxInFlight Maximum number of elements validated at the same time
+     * @return The splitter
+     */
+    static RecordSplitter forLocations (final Schematron schematron, final Set<String> locations, final ReportMerger merger, final Executor executor, final int maxInFlight)
+    {
+        return new RecordSplitter(schematron, null, locations, null, executor, maxInFlight, merger);
+    }
+
+    /**
+     * Return the locations that were found in the document.
+     *
+     * @return Found locations
+     */
+    Set<String> getFoundLocations ()
+    {
+        return foundLocations;
+    }
+
+    /**
+     * Return the names of the ancestors of all validated elements.
+     *
+     * @return Names of the ancestors
+     */
+    Set<QName> getAncestorNames ()
+    {
+        return ancestorNames;
+    }
+
+    /**
+     * Validate the elements of a document and return the merged result.
+     *
+     * @param document Document source providing a stream or system identifier
+     * @return Merged validation result
+     * @throws SchematronException If the document cannot be read or an element cannot be validated
+     */
+    Result validateFragments (final Source document) throws SchematronException
+    {
+        InputSource input = SAXSource.sourceToInputSource(document);
+        if (input == null) {
+            throw new IllegalArgumentException("Records can only be split from a stream source");
+        }
+
+        XMLInputFactory inputFactory = XMLInputFactory.newFactory();
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        try (InputStream stream = openStream(input)) {
+            XMLStreamReader reader;
+            if (stream == null) {
+                reader = inputFactory.createXMLStreamReader(input.getSystemId(), input.getCharacterStream());
+            } else {
+                reader = inputFactory.createXMLStreamReader(input.getSystemId(), stream);
+            }
+            try {
+                split(reader, input.getSystemId());
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | XMLStreamException e) {
+            throw new SchematronException("Unable to split the document into records", e);
+        }
+
+        while (!pending.isEmpty()) {
+            mergeNext();
+        }
+        return merger.getResult();
+    }
+
+    private static InputStream openStream (final InputSource input) throws IOException, SchematronException
+    {
+        InputStream stream = input.getByteStream();
+        if (stream == null && input.getCharacterStream() == null) {
+            stream = resolve(input.getSystemId()).openStream();
+        }
+        return stream;
+    }
+
+    /**
+     * Resolve a system identifier against the current directory, like the JAXP parsers do.
+     */
+    private static URL resolve (final String systemId) throws SchematronException
+    {
+        if (systemId == null) {
+            throw new SchematronException("Records can only be split from a source with a stream or system identifier");
+        }
+        try {
+            return Path.of("").toAbsolutePath().toUri().resolve(systemId).toURL();
+        } catch (IllegalArgumentException | MalformedURLException e) {
+            throw new SchematronException("Unable to resolve the system identifier " + systemId, e);
+        }
+    }
+
+    private void split (final XMLStreamReader reader, final String systemId) throws XMLStreamException, SchematronException
+    {
+        final Deque<StartTag> ancestors = new ArrayDeque<StartTag>();
+        final Deque<Map<QName, Integer>> counters = new ArrayDeque<Map<QName, Integer>>();
+        final Deque<String> paths = new ArrayDeque<String>();
+        counters.push(new HashMap<QName, Integer>());
+        paths.push("");
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                int position = counters.peek().merge(reader.getName(), 1, Integer::sum);
+                String path = getPath(paths.peek(), reader.getName(), position);
+                if (isFragment(reader.getName(), path)) {
+                    FragmentPosition fragmentPosition = getPosition(ancestors, position, path, counters);
+                    submit(fragmentPosition, copyRecord(reader, ancestors), systemId);
+                } else {
+                    ancestors.addLast(new StartTag(reader, position));
+                    counters.push(new HashMap<QName, Integer>());
+                    paths.push(path);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                ancestors.removeLast();
+                counters.pop();
+                paths.pop();
+            }
+        }
+    }
+
+    /**
+     * Return the location of an element, or the empty string when splitting at record elements.
+     */
+    private String getPath (final String parent, final QName name, final int position)
+    {
+        String path = "";
+        if (locations != null) {
+            path = parent + "/Q{" + name.getNamespaceURI() + "}" + name.getLocalPart() + "[" + position + "]";
+        }
+        return path;
+    }
+
+    private boolean isFragment (final QName name, final String path)
+    {
+        boolean fragment;
+        if (locations == null) {
+            fragment = record.equals(name);
+        } else {
+            fragment = locations.contains(path) && foundLocations.add(path);
+        }
+        return fragment;
+    }
+
+    private byte[] copyRecord (final XMLStreamReader reader, final Deque<StartTag> ancestors) throws XMLStreamException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(buffer, ENCODING);
+        writer.writeStartDocument(ENCODING, "1.0");
+        for (StartTag ancestor : ancestors) {
+            ancestor.write(writer);
+        }
+        int depth = copyEvent(reader, writer);
+        while (depth > 0) {
+            reader.next();
+            depth += copyEvent(reader, writer);
+        }
+        writer.writeEndDocument();
+        writer.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Copy the current event and return the change of the element depth.
+     */
+    private static int copyEvent (final XMLStreamReader reader, final XMLStreamWriter writer) throws XMLStreamException
+    {
+        int depth = 0;
+        int event = reader.getEventType();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+            new StartTag(reader, 0).write(writer);
+            depth = 1;
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+            writer.writeEndElement();
+            depth = -1;
+        } else if (reader.isCharacters()) {
+            writer.writeCharacters(reader.getText());
+        } else if (event == XMLStreamConstants.COMMENT) {
+            writer.writeComment(reader.getText());
+        } else if (event == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+            writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+        }
+        return depth;
+    }
+
+    private FragmentPosition getPosition (final Deque<StartTag> ancestors, final int position, final String path, final Deque<Map<QName, Integer>> counters)
+    {
+        final int[] positions = new int[ancestors.size() + 1];
+        int index = 0;
+        for (StartTag ancestor : ancestors) {
+            positions[index] = ancestor.getPosition();
+            ancestorNames.add(ancestor.getName());
+            index++;
+        }
+        positions[index] = position;
+
+        FragmentPosition fragmentPosition;
+        if (locations == null) {
+            fragmentPosition = FragmentPosition.of(positions);
+        } else {
+            fragmentPosition = FragmentPosition.of(positions, path, counters);
+        }
+        return fragmentPosition;
+    }
+
+    private void submit (final FragmentPosition position, final byte[] content, final String systemId) throws SchematronException
+    {
+        while (pending.size() >= maxInFlight) {
+            mergeNext();
+        }
+        pending.addLast(Fragment.submit(schematron, parameters, executor, position, content, systemId));
+    }
+
+    private void mergeNext () throws SchematronException
+    {
+        Fragment fragment = pending.removeFirst();
+        try {
+            merger.merge(fragment.join(), fragment.getPosition());
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SchematronException) {
+                throw (SchematronException)cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Record fragment being validated.
+     */
+    private static final class Fragment
+    {
+        private final FragmentPosition position;
+        private final CompletableFuture<Result> result;
+
+        private Fragment (final FragmentPosition position, final CompletableFuture<Result> result)
+        {
+            this.position = position;
+            this.result = result;
+        }
+
+        static Fragment submit (final Schematron schematron, final Map<String, Object> parameters, final Executor executor, final FragmentPosition position, final byte[] content, final String systemId)
+        {
+            final Source source = new StreamSource(new ByteArrayInputStream(content), systemId);
+            return new Fragment(position, CompletableFuture.supplyAsync(() -> schematron.validateUnchecked(source, parameters), executor));
+        }
+
+        Result join ()
+        {
+            return result.join();
+        }
+
+        FragmentPosition getPosition ()
+        {
+            return position;
+        }
+    }
+
+    /**
+     * Start tag of an element with its namespace declarations and attributes.
+     */
+    private static final class StartTag
+    {
+        private final int position;
+        private final QName name;
+        private final List<String[]> namespaces = new ArrayList<String[]>();
+        private final List<QName> attributeNames = new ArrayList<QName>();
+        private final List<String> attributeValues = new ArrayList<String>();
+
+        StartTag (final XMLStreamReader reader, final int position)
+        {
+            this.position = position;
+            this.name = reader.getName();
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                namespaces.add(new String[] {reader.getNamespacePrefix(i), reader.getNamespaceURI(i)});
+            }
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                attributeNames.add(reader.getAttributeName(i));
+                attributeValues.add(reader.getAttributeValue(i));
+            }
+        }
+
+        int getPosition ()
+        {
+            return position;
+        }
+
+        QName getName ()
+        {
+            return name;
+        }
+
+        void write (final XMLStreamWriter writer) throws XMLStreamException
+        {
+            writer.writeStartElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+            for (String[] namespace : namespaces) {
+                if (namespace[0] == null || namespace[0].isEmpty()) {
+                    writer.writeDefaultNamespace(namespace[1]);
+                } else {
+                    writer.writeNamespace(namespace[0], namespace[1]);
+                }
+            }
+            for (int i = 0; i < attributeNames.size(); i++) {
+                QName attribute = attributeNames.get(i);
+                writer.writeAttribute(attribute.getPrefix(), attribute.getNamespaceURI(), attribute.getLocalPart(), attributeValues.get(i));
+            }
+        }
+    }
+}
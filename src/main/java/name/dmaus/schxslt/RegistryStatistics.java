@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Counters of a {@link SchematronRegistry}.
+ *
+ * <p>Weights are estimated sizes in bytes, durations are in nanoseconds.</p>
+ */
+@Immutable
+public final class RegistryStatistics
+{
+    static final int HITS = 0;
+    static final int MISSES = 1;
+    static final int COMPILES = 2;
+    static final int FAILURES = 3;
+    static final int COMPILE_TIME = 4;
+    static final int EVICTIONS = 5;
+    static final int COUNTERS = 6;
+
+    private final long hitCount;
+    private final long missCount;
+    private final long compileCount;
+    private final long compileFailureCount;
+    private final long compileTime;
+    private final long evictionCount;
+    private final int size;
+    private final long weight;
+
+    /**
+     * Create statistics from counters indexed by the constants of this class.
+     */
+    RegistryStatistics (final long[] counters, final int size, final long weight)
+    {
+        this.hitCount = counters[HITS];
+        this.missCount = counters[MISSES];
+        this.compileCount = counters[COMPILES];
+        this.compileFailureCount = counters[FAILURES];
+        this.compileTime = counters[COMPILE_TIME];
+        this.evictionCount = counters[EVICTIONS];
+        this.size = size;
+        this.weight = weight;
+    }
+
+    /**
+     * Return the number of requests for a Schematron that was compiled or being compiled.
+     *
+     * @return Number of hits
+     */
+    public long getHitCount ()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Return the number of requests that started to compile a Schematron.
+     *
+     * @return Number of misses
+     */
+    public long getMissCount ()
+    {
+        return missCount;
+    }
+
+    /**
+     * Return the number of Schematrons compiled.
+     *
+     * @return Number of successful compilations
+     */
+    public long getCompileCount ()
+    {
+        return compileCount;
+    }
+
+    /**
+     * Return the number of Schematrons that could not be located or compiled.
+     *
+     * @return Number of failed compilations
+     */
+    public long getCompileFailureCount ()
+    {
+        return compileFailureCount;
+    }
+
+    /**
+     * Return the time spent locating and compiling Schematrons.
+     *
+     * @return Total compile time
+     */
+    public long getCompileTime ()
+    {
+        return compileTime;
+    }
+
+    /**
+     * Return the number of Schematrons evicted to stay below the maximum weight.
+     *
+     * @return Number of evictions
+     */
+    public long getEvictionCount ()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * Return the number of compiled Schematrons held by the registry.
+     *
+     * @return Number of Schematrons
+     */
+    public int getSize ()
+    {
+        return size;
+    }
+
+    /**
+     * Return the estimated size of the compiled Schematrons held by the registry.
+     *
+     * @return Weight
+     */
+    public long getWeight ()
+    {
+        return weight;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return String.format("hits=%d misses=%d compiles=%d failures=%d compileTime=%d evictions=%d size=%d weight=%d", hitCount, missCount, compileCount, compileFailureCount, compileTime, evictionCount, size, weight);
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+
+import name.dmaus.schxslt.adapter.Adapter;
+
+import org.w3c.dom.Document;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Schematron that is compiled again when the schema file or one of the files it includes changes.
+ *
+ * <p>The files are watched by a background thread. Included files are resolved with the URIResolver of the
+ * TransformerFactory, just like the compiler resolves them. After a change the thread waits until the files are quiet
+ * and compiles the new version of the schema. If compiling succeeds the new version replaces the current version at
+ * once: validations that already started finish with the old version, validations that start afterwards use the new
+ * version. If compiling fails the current version is kept and the failure is returned by
+ * {@link #getLastFailure()}.</p>
+ *
+ * <p>A version is only compiled if the digest of the schema and its included documents changed. The files of the last
+ * attempt are watched, even if compiling failed, so that fixing a newly included file triggers a new attempt. Closing
+ * the Schematron stops watching the files.</p>
+ */
+@ThreadSafe
+public final class ReloadingSchematron implements Closeable
+{
+    private static final long QUIET_PERIOD_MILLIS = 200;
+    private static final String WATCH_FAILED = "Unable to watch the Schematron files";
+
+    private final Adapter adapter;
+    private final Path schematron;
+    private final String phase;
+    private final TransformerFactory transformerFactory;
+    private final Map<String, Object> options;
+    private final WatchService watchService;
+    private final AtomicReference<Version> current = new AtomicReference<Version>();
+    private final AtomicReference<Set<Path>> files = new AtomicReference<Set<Path>>(Set.of());
+    private final Map<Path, WatchKey> watchKeys = new HashMap<Path, WatchKey>();
+    private final AtomicReference<SchematronException> lastFailure = new AtomicReference<SchematronException>();
+
+    public ReloadingSchematron (final Adapter adapter, final Path schematron) throws SchematronException
+    {
+        this(adapter, schematron, null, null, null);
+    }
+
+    /**
+     * Compile a Schematron file and start watching it.
+     *
+     * @param adapter Transpiler adapter, may not be null
+     * @param schematron Schematron file, may not be null
+     * @param phase Validation phase
+     * @param transformerFactory TransformerFactory to use, possibly with custom URIResolver
+     * @param options Compiler options
+     * @throws SchematronException If compiling the validation stylesheet fails or the files cannot be watched
+     */
+    public ReloadingSchematron (final Adapter adapter, final Path schematron, final String phase, final TransformerFactory transformerFactory, final Map<String, Object> options) throws SchematronException
+    {
+        if (adapter == null) {
+            throw new IllegalArgumentException("Adapter may not be null");
+        }
+        if (schematron == null) {
+            throw new IllegalArgumentException("Schematron file may not be null");
+        }
+
+        TransformerFactory factory = transformerFactory;
+        if (factory == null) {
+            factory = Compiler.getDefaultTransformerFactory();
+        }
+
+        this.adapter = adapter;
+        this.schematron = schematron.toAbsolutePath();
+        this.phase = phase;
+        this.transformerFactory = factory;
+        if (options == null) {
+            this.options = null;
+        } else {
+            this.options = new HashMap<String, Object>(options);
+        }
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            throw new SchematronException(WATCH_FAILED, e);
+        }
+        try {
+            reload();
+        } catch (SchematronException e) {
+            closeQuietly();
+            throw e;
+        }
+
+        Thread watcher = Executors.defaultThreadFactory().newThread(this::watch);
+        watcher.setName("schxslt-reload " + this.schematron.getFileName());
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public Result validate (final Source document) throws SchematronException
+    {
+        return getSchematron().validate(document);
+    }
+
+    /**
+     * Performs the validation with the current version of the Schematron.
+     *
+     * @param  document   The document to validate
+     * @param  parameters Parameters for the validation stylesheet
+     * @return The validation result
+     *
+     * @throws SchematronException A checked exception occured during validation
+     */
+    public Result validate (final Source document, final Map<String, Object> parameters) throws SchematronException
+    {
+        return getSchematron().validate(document, parameters);
+    }
+
+    /**
+     * Return the current version of the Schematron.
+     *
+     * <p>The returned Schematron is not replaced when the files change and can be used to run several validations
+     * with the same version.</p>
+     *
+     * @return The current Schematron
+     */
+    public Schematron getSchematron ()
+    {
+        return current.get().schematron;
+    }
+
+    /**
+     * Return the failure of the last compilation.
+     *
+     * @return The failure or null if the last compilation succeeded
+     */
+    public SchematronException getLastFailure ()
+    {
+        return lastFailure.get();
+    }
+
+    /**
+     * Compile the Schematron now if it changed and replace the current version.
+     *
+     * @throws SchematronException If compiling fails, the current version is kept
+     */
+    public synchronized void reload () throws SchematronException
+    {
+        try {
+            Document document = Compiler.load(transformerFactory, new StreamSource(schematron.toUri().toString()));
+            SchemaDigest digest = new SchemaDigest(transformerFactory);
+            digest.update(document);
+            String key = digest.digest();
+
+            Version version = current.get();
+            if (version == null || !version.digest.equals(key)) {
+                Schematron compiled;
+                try {
+                    compiled = new Schematron(adapter, new DOMSource(document, document.getDocumentURI()), phase, transformerFactory, options);
+                } finally {
+                    register(digest.getDocuments());
+                }
+                current.set(new Version(compiled, key));
+            }
+            lastFailure.set(null);
+        } catch (SchematronException e) {
+            lastFailure.set(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+        watchService.close();
+    }
+
+    private void watch ()
+    {
+        try {
+            while (true) {
+                boolean changed = isChanged(watchService.take());
+                WatchKey key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    changed |= isChanged(key);
+                    key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (changed) {
+                    reloadQuietly();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // The Schematron was closed
+        }
+    }
+
+    private void reloadQuietly ()
+    {
+        try {
+            reload();
+        } catch (SchematronException e) {
+            // Returned by getLastFailure()
+        }
+    }
+
+    private void closeQuietly ()
+    {
+        try {
+            close();
+        } catch (IOException e) {
+            // Nothing left to clean up
+        }
+    }
+
+    /**
+     * Watch the directories of the local files among the documents of the last attempt.
+     *
+     * <p>Directories that no longer hold any of the files are not watched anymore.</p>
+     */
+    private void register (final Set<String> documents) throws SchematronException
+    {
+        Set<Path> watched = new HashSet<Path>();
+        watched.add(schematron);
+        for (String document : documents) {
+            if (document.startsWith("file:")) {
+                watched.add(Path.of(URI.create(document)).toAbsolutePath());
+            }
+        }
+        files.set(watched);
+
+        Set<Path> directories = new HashSet<Path>();
+        for (Path file : watched) {
+            if (file.getParent() != null) {
+                directories.add(file.getParent());
+            }
+        }
+        Iterator<Map.Entry<Path, WatchKey>> entries = watchKeys.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, WatchKey> entry = entries.next();
+            if (!directories.contains(entry.getKey())) {
+                entry.getValue().cancel();
+                entries.remove();
+            }
+        }
+        try {
+            for (Path directory : directories) {
+                if (!watchKeys.containsKey(directory)) {
+                    watchKeys.put(directory, directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE));
+                }
+            }
+        } catch (IOException e) {
+            throw new SchematronException(WATCH_FAILED, e);
+        }
+    }
+
+    private boolean isChanged (final WatchKey key)
+    {
+        boolean changed = false;
+        Path directory = (Path)key.watchable();
+        Set<Path> watched = files.get();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || watched.contains(directory.resolve((Path)event.context()))) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * Compiled version of the Schematron and the digest of the documents it was compiled from.
+     */
+    private static final class Version
+    {
+        private final Schematron schematron;
+        private final String digest;
+
+        Version (final Schematron schematron, final String digest)
+        {
+            this.schematron = schematron;
+            this.digest = digest;
+        }
+    }
+}
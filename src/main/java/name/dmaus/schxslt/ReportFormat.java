@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * Format of a validation report written to a stream.
+ *
+ * <p>The results returned by {@link #newResult(OutputStream)} and {@link #newResult(Writer)} are passed to
+ * {@link Schematron#validate(javax.xml.transform.Source, java.util.Map, javax.xml.transform.Result)}. The report is
+ * written as the validation stylesheet outputs it and is not copied to a DOM document, but the SchXslt stylesheets
+ * build the complete report in a variable before they output it. The validation result only holds the number of
+ * findings.</p>
+ */
+public enum ReportFormat
+{
+    /**
+     * The SVRL report serialized as XML.
+     */
+    SVRL,
+
+    /**
+     * One JSON object per failed assertion and successful report, separated by newlines.
+     *
+     * <p>The members of an object are {@code kind}, {@code id}, {@code role}, {@code flag}, {@code location},
+     * {@code test}, {@code pattern}, {@code rule}, {@code context}, and {@code text}, like the properties of a
+     * {@link Finding}. Members without value are omitted.</p>
+     */
+    JSON_LINES;
+
+    /**
+     * Return a result writing the report to a byte stream, encoded in UTF-8.
+     *
+     * <p>The stream is flushed but not closed at the end of the report.</p>
+     *
+     * @param output Byte stream
+     * @return Result receiving the report
+     */
+    public javax.xml.transform.Result newResult (final OutputStream output)
+    {
+        if (output == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        if (this == SVRL) {
+            return new StreamResult(output);
+        }
+        return newResult(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Return a result writing the report to a character stream.
+     *
+     * <p>The stream is flushed but not closed at the end of the report.</p>
+     *
+     * @param output Character stream
+     * @return Result receiving the report
+     */
+    public javax.xml.transform.Result newResult (final Writer output)
+    {
+        if (output == null) {
+            throw new IllegalArgumentException("Writer may not be null");
+        }
+        if (this == SVRL) {
+            return new StreamResult(output);
+        }
+        return new SAXResult(new JsonLinesWriter(output));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Passes the SVRL events of a validation on to a ContentHandler and counts the findings by role on the fly.
+ *
+ * <p>The events arrive once the validation stylesheet outputs the report, which SchXslt only does after building it
+ * in a variable.</p>
+ */
+final class ReportHandler extends XMLFilterImpl implements LexicalHandler
+{
+    static final String SVRL = "http://purl.oclc.org/dsdl/svrl";
+
+    private final LexicalHandler lexicalHandler;
+    private final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+    ReportHandler (final ContentHandler contentHandler, final LexicalHandler lexicalHandler)
+    {
+        setContentHandler(contentHandler);
+        this.lexicalHandler = lexicalHandler;
+    }
+
+    /**
+     * Return a handler passing the report on to a Result.
+     *
+     * <p>SAX results receive the events directly, all other results are written by an identity transformation.</p>
+     *
+     * @param report Result receiving the report
+     * @param transformerFactory TransformerFactory creating the identity transformation
+     * @return The handler
+     * @throws SchematronException If the identity transformation cannot be created
+     */
+    static ReportHandler newInstance (final Result report, final TransformerFactory transformerFactory) throws SchematronException
+    {
+        ReportHandler handler;
+        if (report instanceof SAXResult saxResult) {
+            LexicalHandler lexicalHandler = saxResult.getLexicalHandler();
+            if (lexicalHandler == null && saxResult.getHandler() instanceof LexicalHandler contentHandler) {
+                lexicalHandler = contentHandler;
+            }
+            handler = new ReportHandler(saxResult.getHandler(), lexicalHandler);
+        } else {
+            if (!transformerFactory.getFeature(SAXTransformerFactory.FEATURE)) {
+                throw new SchematronException("TransformerFactory does not support SAX, use a SAXResult to receive the report");
+            }
+            try {
+                TransformerHandler identity = ((SAXTransformerFactory)transformerFactory).newTransformerHandler();
+                identity.setResult(report);
+                handler = new ReportHandler(identity, identity);
+            } catch (TransformerConfigurationException e) {
+                throw new SchematronException("Unable to create report serializer", e);
+            }
+        }
+        return handler;
+    }
+
+    /**
+     * Return a SAXResult sending the events of a transformation to this handler.
+     *
+     * @param systemId System identifier of the result
+     * @return The result
+     */
+    SAXResult asResult (final String systemId)
+    {
+        SAXResult result = new SAXResult(this);
+        result.setLexicalHandler(this);
+        result.setSystemId(systemId);
+        return result;
+    }
+
+    /**
+     * Return the number of failed assertions and successful reports by role.
+     *
+     * @return Number of findings by role
+     */
+    Map<String, Integer> getCounts ()
+    {
+        return counts;
+    }
+
+    @Override
+    public void startElement (final String uri, final String localName, final String qName, final Attributes atts) throws SAXException
+    {
+        if (SVRL.equals(uri) && ("failed-assert".equals(localName) || "successful-report".equals(localName))) {
+            counts.merge(name.dmaus.schxslt.Result.roleKey(atts.getValue("role")), 1, Integer::sum);
+        }
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void startDTD (final String name, final String publicId, final String systemId) throws SAXException
+    {
+        if (lexicalHandler != null) {
+            lexicalHandler.startDTD(name, publicId, systemId);
+        }
+    }
+
+    @Override
+    public void endDTD () throws SAXException
+    {
+        if (lexicalHandler != null) {
+            lexicalHandler.endDTD();
+        }
+    }
+
+    @Override
+    public void startEntity (final String name) throws SAXException
+    {
+        if (lexicalHandler != null) {
+            lexicalHandler.startEntity(name);
+        }
+    }
+
+    @Override
+    public void endEntity (final String name) throws SAXException
+    {
+        if (lexicalHandler != null) {
+            lexicalHandler.endEntity(name);
+        }
+    }
+
+    @Override
+    public void startCDATA () throws SAXException
+    {
+        if (lexicalHandler != null) {
+            lexicalHandler.startCDATA();
+        }
+    }
+
+    @Override
+    public void endCDATA () throws SAXException
+    {
+        if (lexicalHandler != null) {
+            lexicalHandler.endCDATA();
+        }
+    }
+
+    @Override
+    public void comment (final char[] ch, final int start, final int length) throws SAXException
+    {
+        if (lexicalHandler != null) {
+            lexicalHandler.comment(ch, start, length);
+        }
+    }
+}
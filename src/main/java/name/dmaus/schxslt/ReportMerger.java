@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Merges the validation reports of record fragments.
+ *
+ * <p>The merged report holds the namespace prefixes of the first report and the failed assertions and successful
+ * reports of all fragments, each preceded by its active pattern and fired rule unless they equal the ones of the
+ * previous finding. Rules fired without a finding are not merged. Locations are rewritten from the fragment to the
+ * full document by replacing the position predicates of the record and its ancestors. Findings on the ancestors of
+ * the records, e.g. for a rule with the context {@code /}, are reported by every fragment and merged once.</p>
+ *
+ * <p>A merger created with a base report inserts the findings of the fragments into this report instead, each with
+ * its fired rule, into the section of its pattern and before the first finding of the base report that follows the
+ * fragment in document order. The fragments must be merged in document order, the base report then keeps the order
+ * of a report of the full document. Findings on the ancestors are taken from the base report and not merged at
+ * all.</p>
+ */
+@NotThreadSafe
+final class ReportMerger
+{
+    private static final String SVRL = "http://purl.oclc.org/dsdl/svrl";
+    private static final String LOCATION = "location";
+    private static final String FIRST = "[1]";
+    private static final String ROOT = "/";
+    private static final String ACTIVE_PATTERN = "active-pattern";
+    private static final String FIRED_RULE = "fired-rule";
+
+    private final Document report;
+    private final Set<String> ancestorFindings = new HashSet<String>();
+    private final boolean mergeAncestorFindings;
+    private final List<Node> patterns = new ArrayList<Node>();
+    private final List<Node> cursors = new ArrayList<Node>();
+    private boolean started;
+    private Node activePattern;
+    private Node firedRule;
+    private int patternIndex;
+    private boolean anchored;
+    private Node anchor;
+    private Node insertedRule;
+
+    ReportMerger ()
+    {
+        try {
+            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+            documentBuilderFactory.setNamespaceAware(true);
+            documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            report = documentBuilderFactory.newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Unable to create the merged validation report", e);
+        }
+        mergeAncestorFindings = true;
+    }
+
+    /**
+     * Create a merger inserting into a base report.
+     *
+     * @param base Validation report of the full document the findings are inserted into, owned by the merger
+     */
+    ReportMerger (final Document base)
+    {
+        report = base;
+        mergeAncestorFindings = false;
+        started = true;
+        for (Node node = base.getDocumentElement().getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (Result.isSvrlElement(node, ACTIVE_PATTERN)) {
+                patterns.add(node);
+                cursors.add(node.getNextSibling());
+            }
+        }
+    }
+
+    /**
+     * Merge the report of the next fragment.
+     *
+     * @param result Validation result of the fragment
+     * @param positions Positions of the ancestors and the record in the document
+     */
+    void merge (final Result result, final FragmentPosition position)
+    {
+        Element fragmentReport = result.getValidationReport().getDocumentElement();
+        if (!started) {
+            start(fragmentReport);
+        }
+
+        Node pattern = null;
+        Node rule = null;
+        patternIndex = -1;
+        for (Node node = fragmentReport.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (Result.isSvrlElement(node, ACTIVE_PATTERN)) {
+                pattern = node;
+                rule = null;
+                patternIndex++;
+                anchored = false;
+            } else if (Result.isSvrlElement(node, FIRED_RULE)) {
+                rule = node;
+            } else if (isFinding(node)) {
+                mergeFinding((Element)node, pattern, rule, position);
+            }
+        }
+    }
+
+    /**
+     * Return the merged result.
+     *
+     * @return Merged validation result
+     */
+    Result getResult ()
+    {
+        if (!started) {
+            report.appendChild(report.createElementNS(SVRL, "svrl:schematron-output"));
+        }
+        return new Result(report);
+    }
+
+    private void start (final Element fragmentReport)
+    {
+        Element root = (Element)report.importNode(fragmentReport, false);
+        for (Node node = fragmentReport.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (Result.isSvrlElement(node, "ns-prefix-in-attribute-values")) {
+                root.appendChild(report.importNode(node, true));
+            }
+        }
+        report.appendChild(root);
+        started = true;
+    }
+
+    private void mergeFinding (final Element finding, final Node pattern, final Node rule, final FragmentPosition position)
+    {
+        String location = finding.getAttribute(LOCATION);
+        List<String> steps = getSteps(location);
+        String rewritten = rewrite(location, steps, position.getPositions());
+        boolean merge = true;
+        if (location.startsWith(ROOT) && !isInside(steps, position.getDepth())) {
+            merge = mergeAncestorFindings && ancestorFindings.add(finding.getLocalName() + ' ' + rewritten + ' ' + finding.getAttribute("test") + ' ' + finding.getTextContent());
+        }
+        if (merge) {
+            Element copy;
+            if (mergeAncestorFindings) {
+                appendContext(pattern, rule);
+                copy = (Element)report.getDocumentElement().appendChild(report.importNode(finding, true));
+            } else {
+                copy = insert(finding, rule, position);
+            }
+            if (!rewritten.equals(location)) {
+                copy.setAttribute(LOCATION, rewritten);
+            }
+        }
+    }
+
+    /**
+     * Insert a finding into the base report, preceded by its fired rule unless the rule was inserted before it.
+     */
+    private Element insert (final Element finding, final Node rule, final FragmentPosition position)
+    {
+        Element root = report.getDocumentElement();
+        if (!anchored) {
+            anchor = findAnchor(position);
+            anchored = true;
+            insertedRule = null;
+        }
+        if (rule != null && rule != insertedRule) {
+            root.insertBefore(report.importNode(rule, true), anchor);
+            insertedRule = rule;
+        }
+        return (Element)root.insertBefore(report.importNode(finding, true), anchor);
+    }
+
+    /**
+     * Return the node in the section of the current pattern before which the findings of the fragment are inserted,
+     * or null to append them to the report.
+     *
+     * <p>This is the first finding that does not precede the fragment, or its fired rule. Fragments are merged in
+     * document order, so the search for the next fragment starts at the returned node.</p>
+     */
+    private Node findAnchor (final FragmentPosition position)
+    {
+        if (patternIndex < 0 || patternIndex >= patterns.size()) {
+            return null;
+        }
+        Node end = null;
+        if (patternIndex + 1 < patterns.size()) {
+            end = patterns.get(patternIndex + 1);
+        }
+        Node rule = null;
+        Node node = cursors.get(patternIndex);
+        while (node != end && !follows(node, position)) {
+            if (Result.isSvrlElement(node, FIRED_RULE)) {
+                rule = node;
+            } else if (isFinding(node)) {
+                rule = null;
+            }
+            node = node.getNextSibling();
+        }
+        Node found = node;
+        if (node != end && rule != null) {
+            found = rule;
+        }
+        cursors.set(patternIndex, found);
+        return found;
+    }
+
+    private static boolean follows (final Node node, final FragmentPosition position)
+    {
+        return isFinding(node) && !position.precedes(((Element)node).getAttribute(LOCATION));
+    }
+
+    private void appendContext (final Node pattern, final Node rule)
+    {
+        Element root = report.getDocumentElement();
+        if (pattern != null && (activePattern == null || !pattern.isEqualNode(activePattern))) {
+            activePattern = root.appendChild(report.importNode(pattern, true));
+            firedRule = null;
+        }
+        if (rule != null && (firedRule == null || !rule.isEqualNode(firedRule))) {
+            firedRule = root.appendChild(report.importNode(rule, true));
+        }
+    }
+
+    /**
+     * Return true if the first steps of a location select the fragment element and its ancestors.
+     */
+    private static boolean isInside (final List<String> steps, final int depth)
+    {
+        boolean inside = steps.size() >= depth;
+        for (int i = 0; inside && i < depth; i++) {
+            inside = steps.get(i).endsWith(FIRST);
+        }
+        return inside;
+    }
+
+    static boolean isFinding (final Node node)
+    {
+        return Result.isSvrlElement(node, "failed-assert") || Result.isSvrlElement(node, "successful-report");
+    }
+
+    /**
+     * Replace the position predicates of the first steps of an absolute location.
+     */
+    private static String rewrite (final String location, final List<String> steps, final int[] positions)
+    {
+        if (!location.startsWith(ROOT) || steps.isEmpty()) {
+            return location;
+        }
+        StringBuilder rewritten = new StringBuilder();
+        for (int i = 0; i < steps.size(); i++) {
+            rewritten.append('/');
+            if (i < positions.length) {
+                appendStep(rewritten, steps.get(i), positions[i]);
+            } else {
+                rewritten.append(steps.get(i));
+            }
+        }
+        return rewritten.toString();
+    }
+
+    private static void appendStep (final StringBuilder location, final String step, final int position)
+    {
+        if (step.endsWith(FIRST)) {
+            location.append(step, 0, step.length() - FIRST.length()).append('[').append(position).append(']');
+        } else {
+            location.append(step);
+        }
+    }
+
+    /**
+     * Split an absolute location at the slashes outside of predicates, braced URIs and string literals.
+     */
+    static List<String> getSteps (final String location)
+    {
+        List<String> steps = new ArrayList<String>();
+        StringBuilder step = new StringBuilder();
+        int nesting = 0;
+        char quote = 0;
+        for (int i = 1; i < location.length(); i++) {
+            char character = location.charAt(i);
+            if (quote != 0) {
+                if (character == quote) {
+                    quote = 0;
+                }
+            } else if (character == '\'' || character == '"') {
+                quote = character;
+            } else {
+                nesting += getNesting(character);
+            }
+            if (character == '/' && nesting == 0 && quote == 0) {
+                steps.add(step.toString());
+                step.setLength(0);
+            } else {
+                step.append(character);
+            }
+        }
+        if (step.length() > 0) {
+            steps.add(step.toString());
+        }
+        return steps;
+    }
+
+    private static int getNesting (final char character)
+    {
+        int nesting = 0;
+        if (character == '[' || character == '{') {
+            nesting = 1;
+        } else if (character == ']' || character == '}') {
+            nesting = -1;
+        }
+        return nesting;
+    }
+}
@@ -22,52 +22,168 @@
  * SOFTWARE.
  */
 
+
 package name.dmaus.schxslt;
 
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
 import org.w3c.dom.Element;
 import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
+import org.w3c.dom.Node;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+
+import net.jcip.annotations.ThreadSafe;
 
 /**
  * Schematron validation result.
+ *
+ * <p>The number of findings is counted by role when the result is created. Findings and validation messages are read
+ * from the validation report on first access.</p>
+ *
+ * <p>The findings and their counts are the failed assertions and successful reports that are children of the report's
+ * document element, in document order. The validation messages are read as they always were: first the messages of
+ * all failed assertions, then those of all successful reports, wherever they occur in the report.</p>
  */
+@ThreadSafe
 public final class Result
 {
     private static final String SVRL = "http://purl.oclc.org/dsdl/svrl";
+    private static final String ROLE = "role";
 
     private final Document report;
-    private final List<String> messages = new ArrayList<>();
+    private final Map<String, Integer> counts;
+    private final int count;
+    private final boolean truncated;
+    private final boolean readOnly;
+
+    private List<Finding> findings;
+    private List<String> messages;
 
     Result (final Document report)
+    {
+        this(report, false);
+    }
+
+    /**
+     * Result of a validation that might have been stopped by a {@link ValidationLimit}.
+     *
+     * @param report Validation report
+     * @param truncated True if the validation was stopped
+     */
+    Result (final Document report, final boolean truncated)
+    {
+        this(report, truncated, false);
+    }
+
+    /**
+     * Result of a validation whose report might be a read-only view of a tree.
+     *
+     * @param report Validation report
+     * @param truncated True if the validation was stopped
+     * @param readOnly True if the report cannot be cloned and is copied to a new DOM tree instead
+     */
+    Result (final Document report, final boolean truncated, final boolean readOnly)
     {
         this.report = report;
+        this.truncated = truncated;
+        this.readOnly = readOnly;
+        this.counts = countFindings(report);
+        this.count = sum(counts);
+    }
 
-        readMessages(report.getElementsByTagNameNS(SVRL, "failed-assert"));
-        readMessages(report.getElementsByTagNameNS(SVRL, "successful-report"));
+    /**
+     * Result of a validation whose report was passed on to the caller.
+     *
+     * @param counts Number of failed assertions and successful reports by role
+     */
+    Result (final Map<String, Integer> counts)
+    {
+        this.report = null;
+        this.truncated = false;
+        this.readOnly = false;
+        this.counts = Collections.unmodifiableMap(new HashMap<String, Integer>(counts));
+        this.count = sum(counts);
+        this.findings = Collections.emptyList();
+        this.messages = Collections.emptyList();
     }
 
     /**
      * Return list of validation messages.
      *
+     * <p>The messages of all failed assertions come first, followed by the messages of all successful reports. The
+     * list is empty if the validation report was passed on to a caller-supplied Result.</p>
+     *
      * @return Validation messages.
      */
-    public List<String> getValidationMessages ()
+    public synchronized List<String> getValidationMessages ()
     {
+        if (messages == null) {
+            List<String> validationMessages = new ArrayList<String>(count);
+            List<String> reportMessages = new ArrayList<String>();
+            readMessages(report, validationMessages, reportMessages);
+            validationMessages.addAll(reportMessages);
+            messages = validationMessages;
+        }
         return Collections.unmodifiableList(messages);
     }
 
+    /**
+     * Return the failed assertions and successful reports in document order.
+     *
+     * <p>Only the findings that are children of the report's document element are returned. The list is empty if the validation report was passed on to a caller-supplied Result.</p>
+     *
+     * @return Findings
+     */
+    public synchronized List<Finding> getFindings ()
+    {
+        readFindings();
+        return Collections.unmodifiableList(findings);
+    }
+
+    /**
+     * Return the number of failed assertions and successful reports.
+     *
+     * <p>The findings are counted like those returned by {@link #getFindings()}.</p>
+     *
+     * @return Number of findings
+     */
+    public int getFindingCount ()
+    {
+        return count;
+    }
+
+    /**
+     * Return the number of failed assertions and successful reports with a role.
+     *
+     * @param role Role or null to count the findings without a role
+     * @return Number of findings
+     */
+    public int getFindingCount (final String role)
+    {
+        return counts.getOrDefault(roleKey(role), 0);
+    }
+
     /**
      * Returns the validation report.
      *
-     * @return Validation report
+     * @return Validation report or null if the report was passed on to a caller-supplied Result
      */
     public Document getValidationReport ()
     {
-        return (Document)report.cloneNode(true);
+        Document copy = null;
+        if (readOnly) {
+            copy = importReport();
+        } else if (report != null) {
+            copy = (Document)report.cloneNode(true);
+        }
+        return copy;
     }
 
     /**
@@ -77,15 +193,139 @@ public final class Result
      */
     public boolean isValid ()
     {
-        return messages.isEmpty();
+        return count == 0;
     }
 
-    private void readMessages (final NodeList nodes)
+    /**
+     * Returns true if the validation was stopped by a {@link ValidationLimit}.
+     *
+     * <p>The report of a truncated validation only holds the findings up to the limit.</p>
+     *
+     * @return True if the validation was stopped
+     */
+    public boolean isTruncated ()
+    {
+        return truncated;
+    }
+
+    /**
+     * Return the key a finding with the given role is counted under.
+     *
+     * @param role Role or null
+     * @return Key
+     */
+    static String roleKey (final String role)
+    {
+        if (role == null) {
+            return "";
+        }
+        return role;
+    }
+
+    /**
+     * Return true if the node is the SVRL element with the given local name.
+     *
+     * @param node Node
+     * @param localName Local name
+     * @return True if the node is the SVRL element
+     */
+    static boolean isSvrlElement (final Node node, final String localName)
+    {
+        return node.getNodeType() == Node.ELEMENT_NODE && SVRL.equals(node.getNamespaceURI()) && localName.equals(node.getLocalName());
+    }
+
+    private static Finding.Kind getKind (final Node node)
+    {
+        for (Finding.Kind kind : Finding.Kind.values()) {
+            if (isSvrlElement(node, kind.getName())) {
+                return kind;
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, Integer> countFindings (final Document report)
+    {
+        Map<String, Integer> roles = new HashMap<String, Integer>();
+        for (Node node = report.getDocumentElement().getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (getKind(node) != null) {
+                Element finding = (Element)node;
+                String role = null;
+                if (finding.hasAttribute(ROLE)) {
+                    role = finding.getAttribute(ROLE);
+                }
+                roles.merge(roleKey(role), 1, Integer::sum);
+            }
+        }
+        return Collections.unmodifiableMap(roles);
+    }
+
+    private static int sum (final Map<String, Integer> values)
+    {
+        int total = 0;
+        for (int value : values.values()) {
+            total += value;
+        }
+        return total;
+    }
+
+    private Document importReport ()
     {
-        for (int i = 0; i < nodes.getLength(); i++) {
-            Element element = (Element)nodes.item(i);
-            String message = String.format("%s %s %s", element.getLocalName(), element.getAttribute("location"), element.getTextContent());
-            messages.add(message);
+        try {
+            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+            documentBuilderFactory.setNamespaceAware(true);
+            documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            Document copy = documentBuilderFactory.newDocumentBuilder().newDocument();
+            copy.appendChild(copy.importNode(report.getDocumentElement(), true));
+            copy.setDocumentURI(report.getDocumentURI());
+            return copy;
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Unable to create a copy of the validation report", e);
         }
     }
+
+    private void readFindings ()
+    {
+        if (findings == null) {
+            List<Finding> typedFindings = new ArrayList<Finding>(count);
+            Element activePattern = null;
+            Element firedRule = null;
+            for (Node node = report.getDocumentElement().getFirstChild(); node != null; node = node.getNextSibling()) {
+                Finding.Kind kind = getKind(node);
+                if (kind != null) {
+                    typedFindings.add(new Finding(kind, (Element)node, activePattern, firedRule));
+                } else if (isSvrlElement(node, "active-pattern")) {
+                    activePattern = (Element)node;
+                    firedRule = null;
+                } else if (isSvrlElement(node, "fired-rule")) {
+                    firedRule = (Element)node;
+                }
+            }
+            findings = typedFindings;
+        }
+    }
+
+    /**
+     * Read the messages of the failed assertions and successful reports that descend from a node.
+     *
+     * <p>The descendants are walked instead of using getElementsByTagNameNS, because the DOM view of a Saxon tree
+     * does not find namespaced elements with it.</p>
+     */
+    private static void readMessages (final Node parent, final List<String> assertMessages, final List<String> reportMessages)
+    {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            Finding.Kind kind = getKind(node);
+            if (kind == Finding.Kind.FAILED_ASSERT) {
+                assertMessages.add(toMessage((Element)node));
+            } else if (kind == Finding.Kind.SUCCESSFUL_REPORT) {
+                reportMessages.add(toMessage((Element)node));
+            }
+            readMessages(node, assertMessages, reportMessages);
+        }
+    }
+
+    private static String toMessage (final Element element)
+    {
+        return String.format("%s %s %s", element.getLocalName(), element.getAttribute("location"), element.getTextContent());
+    }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+
+import org.w3c.dom.Document;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Runs a validation stylesheet with the Saxon s9api.
+ *
+ * <p>The validation report is kept as a Saxon tree and only read through a DOM view, so it is not converted to a
+ * W3C DOM tree unless the caller asks for the validation report.</p>
+ *
+ * <p>The engine runs the XsltTransformer underlying a JAXP transformer, so that parameters are converted like those
+ * of any other validation, including DOM nodes and sources. The document is parsed with the configuration of the
+ * TransformerFactory, like a {@link ParsedDocument}. Saxon is called by {@link SaxonReflection}.</p>
+ */
+@ThreadSafe
+final class SaxonEngine
+{
+    private static final String NODE_INFO = "net.sf.saxon.om.NodeInfo";
+
+    private final TransformerFactory transformerFactory;
+
+    /**
+     * Create an engine running Saxon validation stylesheets.
+     *
+     * @param transformerFactory Saxon TransformerFactory that created the validation stylesheets
+     */
+    SaxonEngine (final TransformerFactory transformerFactory)
+    {
+        this.transformerFactory = transformerFactory;
+    }
+
+    /**
+     * Validate a document.
+     *
+     * @param transformer Saxon transformer of the validation stylesheet
+     * @param document Document source
+     * @param timer Timer measuring the validation
+     * @return The validation result
+     * @throws SchematronException If the validation fails
+     */
+    Result validate (final Transformer transformer, final Source document, final ValidationTimer timer) throws SchematronException
+    {
+        try {
+            return new Result(transform(transformer, document, timer), false, true);
+        } catch (TransformerException e) {
+            throw new SchematronException("Error running transformation stylesheet", e);
+        }
+    }
+
+    private Document transform (final Transformer transformer, final Source document, final ValidationTimer timer) throws TransformerException, SchematronException
+    {
+        Source input = document;
+        if (!SaxonReflection.isInstance(document, NODE_INFO)) {
+            input = SaxonTreeBuilder.build(transformerFactory, document);
+        }
+        timer.parsed();
+
+        Object xsltTransformer = SaxonReflection.invoke(transformer, "getUnderlyingXsltTransformer");
+        SaxonReflection.invoke(xsltTransformer, "setSource", input);
+        Object report = SaxonReflection.newInstance(xsltTransformer, "net.sf.saxon.s9api.XdmDestination");
+        SaxonReflection.invoke(xsltTransformer, "setDestination", report);
+        SaxonReflection.invoke(xsltTransformer, "transform");
+        timer.transformed();
+        return (Document)SaxonReflection.wrap(SaxonReflection.invoke(SaxonReflection.invoke(report, "getXdmNode"), "getUnderlyingNode"));
+    }
+}
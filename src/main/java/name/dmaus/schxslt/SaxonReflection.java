@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.function.Consumer;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Node;
+
+/**
+ * Calls the Saxon API by reflection.
+ *
+ * <p>Saxon is a runtime dependency and only loaded when a Saxon TransformerFactory is used. Classes are loaded by the
+ * class loader of the Saxon object they are used with and methods are looked up by name and arguments. Exceptions
+ * thrown by Saxon are passed on, checked exceptions other than TransformerException are wrapped in a
+ * TransformerException.</p>
+ */
+final class SaxonReflection
+{
+    private static final String NODE_OVER_NODE_INFO = "net.sf.saxon.dom.NodeOverNodeInfo";
+    private static final String STANDARD_MESSAGE_HANDLER = "net.sf.saxon.lib.StandardMessageHandler";
+    private static final String GET_UNDERLYING_CONTROLLER = "getUnderlyingController";
+
+    private static final ClassValue<Method[]> METHODS = new ClassValue<Method[]>() {
+        @Override
+        protected Method[] computeValue (final Class<?> type)
+        {
+            return type.getMethods();
+        }
+    };
+
+    private SaxonReflection ()
+    {
+    }
+
+    /**
+     * Call a public method.
+     *
+     * @param target Object to call the method on
+     * @param name Name of the method
+     * @param arguments Arguments of the method
+     * @return Return value of the method
+     * @throws TransformerException If the method fails or cannot be called
+     */
+    static Object invoke (final Object target, final String name, final Object... arguments) throws TransformerException
+    {
+        for (Method method : METHODS.get(target.getClass())) {
+            if (method.getName().equals(name) && isApplicable(method.getParameterTypes(), arguments)) {
+                try {
+                    return method.invoke(target, arguments);
+                } catch (InvocationTargetException e) {
+                    throw unwrap(e);
+                } catch (ReflectiveOperationException e) {
+                    throw new TransformerException("Unable to call Saxon method " + name, e);
+                }
+            }
+        }
+        throw new TransformerException("Saxon method " + name + " not found in " + target.getClass().getName());
+    }
+
+    /**
+     * Create an instance of a Saxon class.
+     *
+     * @param context Saxon object whose class loader loads the class
+     * @param className Name of the class
+     * @param arguments Arguments of the public constructor
+     * @return The new instance
+     * @throws TransformerException If the constructor fails or cannot be called
+     */
+    static Object newInstance (final Object context, final String className, final Object... arguments) throws TransformerException
+    {
+        try {
+            for (Constructor<?> constructor : loadClass(context, className).getConstructors()) {
+                if (isApplicable(constructor.getParameterTypes(), arguments)) {
+                    return constructor.newInstance(arguments);
+                }
+            }
+        } catch (InvocationTargetException e) {
+            throw unwrap(e);
+        } catch (ReflectiveOperationException e) {
+            throw new TransformerException("Unable to create an instance of " + className, e);
+        }
+        throw new TransformerException("Constructor of " + className + " not found");
+    }
+
+    /**
+     * Return a DOM view of a Saxon node.
+     *
+     * @param node Saxon NodeInfo
+     * @return DOM node
+     * @throws TransformerException If the node cannot be wrapped
+     */
+    static Node wrap (final Object node) throws TransformerException
+    {
+        try {
+            return (Node)loadClass(node, NODE_OVER_NODE_INFO).getMethod("wrap", loadClass(node, "net.sf.saxon.om.NodeInfo")).invoke(null, node);
+        } catch (InvocationTargetException e) {
+            throw unwrap(e);
+        } catch (ReflectiveOperationException e) {
+            throw new TransformerException("Unable to wrap a Saxon node", e);
+        }
+    }
+
+    /**
+     * Return the product version of Saxon.
+     *
+     * @param context Saxon class whose class loader loads Saxon's version class
+     * @return The product version
+     * @throws TransformerException If the version cannot be obtained
+     */
+    static String getProductVersion (final Class<?> context) throws TransformerException
+    {
+        try {
+            return (String)Class.forName("net.sf.saxon.Version", true, context.getClassLoader()).getMethod("getProductVersion").invoke(null);
+        } catch (InvocationTargetException e) {
+            throw unwrap(e);
+        } catch (ReflectiveOperationException e) {
+            throw new TransformerException("Unable to obtain the Saxon version", e);
+        }
+    }
+
+    /**
+     * Return true if an object is an instance of a Saxon class or interface.
+     *
+     * <p>The type is identified by name, so that the object's class loader is not asked to load a class it does not
+     * know.</p>
+     *
+     * @param object Object
+     * @param className Name of the class or interface
+     * @return True if the object is an instance
+     */
+    static boolean isInstance (final Object object, final String className)
+    {
+        return isSubtype(object.getClass(), className);
+    }
+
+    /**
+     * Return the message handler of a Saxon transformer.
+     *
+     * @param transformer Saxon transformer
+     * @return The message handler or Saxon's standard message handler if the transformer has none
+     * @throws TransformerException If the message handler cannot be obtained
+     */
+    @SuppressWarnings("unchecked")
+    static Consumer<Object> getMessageHandler (final Transformer transformer) throws TransformerException
+    {
+        Object controller = invoke(transformer, GET_UNDERLYING_CONTROLLER);
+        Object messageHandler = invoke(controller, "getMessageHandler");
+        if (messageHandler == null) {
+            messageHandler = newInstance(controller, STANDARD_MESSAGE_HANDLER, invoke(controller, "getConfiguration"));
+        }
+        return (Consumer<Object>)messageHandler;
+    }
+
+    /**
+     * Set the message handler of a Saxon transformer.
+     *
+     * @param transformer Saxon transformer
+     * @param messageHandler Handler receiving the Saxon messages
+     * @throws TransformerException If the message handler cannot be set
+     */
+    static void setMessageHandler (final Transformer transformer, final Consumer<Object> messageHandler) throws TransformerException
+    {
+        invoke(invoke(transformer, GET_UNDERLYING_CONTROLLER), "setMessageHandler", messageHandler);
+    }
+
+    private static Class<?> loadClass (final Object context, final String className) throws ClassNotFoundException
+    {
+        return Class.forName(className, true, context.getClass().getClassLoader());
+    }
+
+    private static boolean isApplicable (final Class<?>[] parameterTypes, final Object... arguments)
+    {
+        boolean applicable = parameterTypes.length == arguments.length;
+        for (int i = 0; applicable && i < arguments.length; i++) {
+            applicable = arguments[i] == null || parameterTypes[i].isInstance(arguments[i]);
+        }
+        return applicable;
+    }
+
+    private static boolean isSubtype (final Class<?> type, final String className)
+    {
+        boolean subtype = type.getName().equals(className);
+        if (!subtype && type.getSuperclass() != null) {
+            subtype = isSubtype(type.getSuperclass(), className);
+        }
+        for (Class<?> implemented : type.getInterfaces()) {
+            subtype = subtype || isSubtype(implemented, className);
+        }
+        return subtype;
+    }
+
+    private static TransformerException unwrap (final InvocationTargetException exception)
+    {
+        Throwable cause = exception.getCause();
+        if (cause instanceof RuntimeException runtimeException) {
+            throw runtimeException;
+        }
+        if (cause instanceof Error error) {
+            throw error;
+        }
+        if (cause instanceof TransformerException transformerException) {
+            return transformerException;
+        }
+        return new TransformerException(cause);
+    }
+}
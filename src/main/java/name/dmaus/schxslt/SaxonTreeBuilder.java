@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+
+/**
+ * Builds Saxon TinyTrees.
+ */
+final class SaxonTreeBuilder
+{
+    private SaxonTreeBuilder ()
+    {
+    }
+
+    /**
+     * Parse a document into a tree that can be shared by all transformers of the factory.
+     *
+     * @param transformerFactory Saxon TransformerFactory
+     * @param source Document source
+     * @return Root node of the tree
+     * @throws SchematronException If the document cannot be parsed
+     */
+    static Source build (final TransformerFactory transformerFactory, final Source source) throws SchematronException
+    {
+        try {
+            Object configuration = SaxonReflection.invoke(transformerFactory, "getConfiguration");
+            return (Source)SaxonReflection.invoke(SaxonReflection.invoke(configuration, "buildDocumentTree", source), "getRootNode");
+        } catch (TransformerException e) {
+            throw new SchematronException("Error parsing the document", e);
+        }
+    }
+}
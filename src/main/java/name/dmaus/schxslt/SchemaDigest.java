@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Computes a SHA-256 digest of a Schematron schema and all documents it includes.
+ *
+ * <p>The digest also covers stylesheets and the documents they include or import, and is used to key the validation
+ * stylesheets in {@link SchematronCache}.</p>
+ */
+final class SchemaDigest
+{
+    private static final String SCHEMATRON = "http://purl.oclc.org/dsdl/schematron";
+    private static final String XSLT = "http://www.w3.org/1999/XSL/Transform";
+    private static final String INCLUDE = "include";
+
+    private static final Map<String, String> TRANSPILERS = new ConcurrentHashMap<String, String>();
+    private static final URIResolver TRANSPILER_RESOLVER = SharedResolver.getDefault();
+
+    private final TransformerFactory transformerFactory;
+    private final MessageDigest digest;
+    private final Set<String> visited = new HashSet<String>();
+
+    SchemaDigest (final TransformerFactory transformerFactory)
+    {
+        this.transformerFactory = transformerFactory;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 message digest not available", e);
+        }
+    }
+
+    /**
+     * Add a Schematron document and all documents it includes to the digest.
+     *
+     * @param schema Schematron document
+     * @throws SchematronException If an included document cannot be read
+     */
+    void update (final Document schema) throws SchematronException
+    {
+        String systemId = schema.getDocumentURI();
+        if (systemId != null) {
+            visited.add(systemId);
+        }
+        serialize(schema);
+        updateIncludes(schema.getElementsByTagNameNS(SCHEMATRON, INCLUDE), systemId);
+        updateIncludes(schema.getElementsByTagNameNS(SCHEMATRON, "extends"), systemId);
+        updateIncludes(schema.getElementsByTagNameNS(XSLT, INCLUDE), systemId);
+        updateIncludes(schema.getElementsByTagNameNS(XSLT, "import"), systemId);
+    }
+
+    /**
+     * Add a document and all documents it includes to the digest.
+     *
+     * @param source Document source
+     * @throws SchematronException If a document cannot be read
+     */
+    void update (final Source source) throws SchematronException
+    {
+        update(Compiler.load(transformerFactory, source));
+    }
+
+    /**
+     * Add a string value to the digest.
+     *
+     * @param value String value, may be null
+     */
+    void update (final String value)
+    {
+        if (value == null) {
+            digest.update((byte)0);
+        } else {
+            digest.update((byte)1);
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)0);
+        }
+    }
+
+    /**
+     * Add a transpiler stylesheet and all stylesheets it includes or imports to the digest.
+     *
+     * <p>The digest of a transpiler stylesheet is computed once and reused.</p>
+     *
+     * @param step URI of the transpiler stylesheet
+     * @throws SchematronException If a stylesheet cannot be read
+     */
+    void updateTranspiler (final String step) throws SchematronException
+    {
+        String transpilerDigest = TRANSPILERS.get(step);
+        if (transpilerDigest == null) {
+            try {
+                SchemaDigest transpiler = new SchemaDigest(transformerFactory);
+                transpiler.update(TRANSPILER_RESOLVER.resolve(step, null));
+                transpilerDigest = transpiler.digest();
+                TRANSPILERS.put(step, transpilerDigest);
+            } catch (TransformerException e) {
+                throw new SchematronException("Unable to resolve transpiler stylesheet " + step, e);
+            }
+        }
+        update(transpilerDigest);
+    }
+
+    /**
+     * Return the system identifiers of all documents added to the digest.
+     *
+     * @return System identifiers
+     */
+    Set<String> getDocuments ()
+    {
+        return Set.copyOf(visited);
+    }
+
+    /**
+     * Complete the digest and return it as hexadecimal string.
+     *
+     * @return The digest
+     */
+    String digest ()
+    {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private void updateIncludes (final NodeList includes, final String base) throws SchematronException
+    {
+        for (int i = 0; i < includes.getLength(); i++) {
+            String href = ((Element)includes.item(i)).getAttribute("href");
+            int fragment = href.indexOf('#');
+            if (fragment >= 0) {
+                href = href.substring(0, fragment);
+            }
+            if (!href.isEmpty()) {
+                Source source = resolve(href, base);
+                String systemId = source.getSystemId();
+                if (systemId == null || visited.add(systemId)) {
+                    update(source);
+                }
+            }
+        }
+    }
+
+    private Source resolve (final String href, final String base) throws SchematronException
+    {
+        try {
+            Source source = null;
+            URIResolver resolver = transformerFactory.getURIResolver();
+            if (resolver != null) {
+                source = resolver.resolve(href, base);
+            }
+            if (source == null) {
+                URI uri = URI.create(href);
+                if (base != null) {
+                    uri = URI.create(base).resolve(uri);
+                }
+                source = new StreamSource(uri.toString());
+            }
+            return source;
+        } catch (TransformerException | IllegalArgumentException e) {
+            throw new SchematronException("Unable to resolve included document " + href, e);
+        }
+    }
+
+    private void serialize (final Document document) throws SchematronException
+    {
+        try (OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+            Transformer serializer = transformerFactory.newTransformer();
+            serializer.transform(new DOMSource(document), new StreamResult(out));
+        } catch (TransformerException | IOException e) {
+            throw new SchematronException("Unable to compute digest of Schematron document", e);
+        }
+    }
+}
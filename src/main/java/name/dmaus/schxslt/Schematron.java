@@ -24,36 +24,76 @@
 
 package name.dmaus.schxslt;
 
+import javax.xml.namespace.QName;
 import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.Source;
 
-import javax.xml.transform.dom.DOMSource;
-
 import name.dmaus.schxslt.adapter.Adapter;
 
 import org.w3c.dom.Document;
 
-import org.xml.sax.XMLReader;
-
-import org.xmlresolver.XMLResolver;
-import org.xmlresolver.tools.ResolvingXMLReader;
-
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 
 import net.jcip.annotations.ThreadSafe;
 
 /**
  * Main entry point for Schematron validation.
+ *
+ * <p>A Schematron created with the phase {@link #RUNTIME_PHASE} is compiled once with all patterns. The phase is then
+ * selected for each validation by the parameter {@link #PHASE_PARAMETER} and defaults to the default phase of the
+ * Schematron. This only works for phases declared in the Schematron document itself that do not declare
+ * variables.</p>
+ *
+ * <p>A Schematron created with the compiler option {@link #PROFILE_OPTION} records how often each rule fires and
+ * each assert and report is tested, and the time spent. The profile covers all validations and is returned by
+ * {@link #getProfile()}. Profiling requires Saxon.</p>
  */
 @ThreadSafe
 public final class Schematron
 {
-    private Validator validator;
-    private Adapter adapter;
-    private XMLResolver resolver = new XMLResolver();
+    /**
+     * Phase that compiles all patterns and selects the active patterns at validation time.
+     */
+    public static final String RUNTIME_PHASE = PhaseSelection.RUNTIME_PHASE;
+
+    /**
+     * Validation parameter that selects the phase of a Schematron compiled with {@link #RUNTIME_PHASE}.
+     */
+    public static final String PHASE_PARAMETER = PhaseSelection.PARAMETER;
+
+    /**
+     * Compiler option that profiles the rules of the Schematron if its value is true.
+     */
+    public static final String PROFILE_OPTION = "{http://dmaus.name/ns/schxslt-java}profile";
+
+    /**
+     * Compiler option that lets {@link #validate(Source, Map, ValidationLimit)} stop at the limit if its value is
+     * true.
+     */
+    public static final String LIMIT_OPTION = "{http://dmaus.name/ns/schxslt-java}validation-limit";
+
+    /**
+     * Compiler option that rewrites lookups like {@code //item[@id = current()/@ref]} to key lookups if its value is
+     * true.
+     */
+    public static final String OPTIMIZE_KEYS_OPTION = "{http://dmaus.name/ns/schxslt-java}optimize-keys";
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final Validator validator;
+    private final Profiler profiler;
 
     public Schematron (final Adapter adapter, final Source schematron) throws SchematronException {
         this(adapter, schematron, null, null);
@@ -77,53 +117,476 @@ public final class Schematron
      * @throws SchematronException If compiling the validation stylesheet fails
      */
     public Schematron (final Adapter adapter, final Source schematron, final String phase, final TransformerFactory transformerFactory, final Map<String, Object> options) throws SchematronException {
+        this(adapter, schematron, phase, transformerFactory, options, null);
+    }
+
+    /**
+     * Create a Schematron resolving with a shared resolver.
+     *
+     * <p>The shared resolver resolves the Schematron includes and the documents loaded by the validation stylesheet,
+     * and its catalogs resolve the external entities of validated documents. Schematron instances created with the
+     * same shared resolver read each resource once.</p>
+     *
+     * @param adapter Transpiler adapter
+     * @param schematron May not be null
+     * @param phase Validation phase
+     * @param transformerFactory TransformerFactory to use
+     * @param options Compiler options
+     * @param resolver Shared resolver or null to use the URIResolver of the TransformerFactory
+     * @throws SchematronException If compiling the validation stylesheet fails
+     */
+    public Schematron (final Adapter adapter, final Source schematron, final String phase, final TransformerFactory transformerFactory, final Map<String, Object> options, final SharedResolver resolver) throws SchematronException {
+        this(adapter, schematron, phase, transformerFactory, options, resolver, Profiler.newInstance(options));
+    }
+
+    private Schematron (final Adapter adapter, final Source schematron, final String phase, final TransformerFactory transformerFactory, final Map<String, Object> options, final SharedResolver resolver, final Profiler profiler) throws SchematronException {
+        this(newTemplates(adapter, schematron, phase, transformerFactory, options, resolver, profiler), transformerFactory, resolver, profiler);
+    }
+
+    Schematron (final Templates templates, final TransformerFactory transformerFactory)
+    {
+        this(templates, transformerFactory, null, null);
+    }
+
+    private Schematron (final Templates templates, final TransformerFactory transformerFactory, final SharedResolver resolver, final Profiler profiler)
+    {
+        TransformerFactory factory = transformerFactory;
+        if (factory == null) {
+            factory = Compiler.getDefaultTransformerFactory();
+        }
+        if (resolver == null) {
+            this.validator = new Validator(SharedResolver.getDefault().getXMLResolver(), templates, factory, profiler, null);
+        } else {
+            this.validator = new Validator(resolver.getXMLResolver(), templates, factory, profiler, resolver);
+        }
+        this.profiler = profiler;
+    }
+
+    public Result validate (final Source document) throws SchematronException
+    {
+        return validate(document, null);
+    }
+
+    /**
+     * Performs the validation and returns the validation result.
+     *
+     * @param  document   The document to validate
+     * @param  parameters Parameters for the validation stylesheet
+     * @return The validation result
+     *
+     * @throws SchematronException A checked exception occured during validation
+     */
+    public Result validate (final Source document, final Map<String, Object> parameters) throws SchematronException
+    {
+        return validator.validate(document, parameters);
+    }
+
+    /**
+     * Performs the validation of a document held in a byte array.
+     *
+     * <p>The parser reads the array directly, it is not copied.</p>
+     *
+     * @param  document   The document to validate
+     * @param  parameters Parameters for the validation stylesheet
+     * @return The validation result
+     *
+     * @throws SchematronException A checked exception occured during validation
+     */
+    public Result validate (final byte[] document, final Map<String, Object> parameters) throws SchematronException
+    {
+        return validate(DocumentSources.of(document), parameters);
+    }
+
+    /**
+     * Performs the validation of a document held in a buffer.
+     *
+     * <p>The parser reads the remaining bytes of the buffer, a heap, direct, or mapped buffer is not copied to an
+     * intermediate array. The position of the buffer is not changed.</p>
+     *
+     * @param  document   The document to validate
+     * @param  parameters Parameters for the validation stylesheet
+     * @return The validation result
+     *
+     * @throws SchematronException A checked exception occured during validation
+     */
+    public Result validate (final ByteBuffer document, final Map<String, Object> parameters) throws SchematronException
+    {
+        return validate(DocumentSources.of(document), parameters);
+    }
+
+    /**
+     * Performs the validation of a file.
+     *
+     * <p>Files of one MiB and more are mapped into memory and read by the parser without an intermediate stream
+     * buffer. Relative references in the document are resolved against the file.</p>
+     *
+     * @param  document   The document to validate
+     * @param  parameters Parameters for the validation stylesheet
+     * @return The validation result
+     *
+     * @throws SchematronException A checked exception occured during validation
+     */
+    public Result validate (final Path document, final Map<String, Object> parameters) throws SchematronException
+    {
+        return validate(DocumentSources.of(document), parameters);
+    }
+
+    /**
+     * Performs the validation and writes the validation report to a Result.
+     *
+     * <p>The report is passed on as the validation stylesheet outputs it instead of being copied to a DOM document. The
+     * SchXslt stylesheets build the complete report in a variable before they output it, so the report is still held
+     * in memory once, in the XSLT processor's tree model. A SAXResult receives the report as SAX events, all other
+     * results are written by an identity transformation. The returned validation result only knows whether the
+     * document is valid: it has no validation report and no validation messages.</p>
+     *
+     * @param  document   The document to validate
+     * @param  parameters Parameters for the validation stylesheet
+     * @param  report     Receives the validation report
+     * @return The validation result
+     *
+     * @throws SchematronException A checked exception occured during validation
+     */
+    public Result validate (final Source document, final Map<String, Object> parameters, final javax.xml.transform.Result report) throws SchematronException
+    {
+        if (report == null) {
+            throw new IllegalArgumentException("Report result may not be null");
+        }
+        return validator.validate(document, parameters, report);
+    }
+
+    /**
+     * Performs the validation and stops when the limit is reached.
+     *
+     * <p>If the validation was stopped the validation result is truncated: its report only holds the findings up to
+     * the limit. Stopping early requires a Schematron compiled by Saxon with the compiler option
+     * {@link #LIMIT_OPTION}. Otherwise the validation runs to the end and the result is not truncated.</p>
+     *
+     * @param  document   The document to validate
+     * @param  parameters Parameters for the validation stylesheet
+     * @param  limit      Number and kind of findings after which to stop
+     * @return The validation result
+     *
+     * @throws SchematronException A checked exception occured during validation
+     */
+    public Result validate (final Source document, final Map<String, Object> parameters, final ValidationLimit limit) throws SchematronException
+    {
+        if (limit == null) {
+            throw new IllegalArgumentException("Validation limit may not be null");
+        }
+        return validator.validate(document, parameters, limit);
+    }
+
+    /**
+     * Validates documents in parallel using the default executor.
+     *
+     * @param  documents  The documents to validate
+     * @return One future validation result per document, in the order of the documents
+     * @throws SchematronException Interrupted while waiting to submit a document
+     * @see #validateAll(Iterable, Map, Executor, int)
+     */
+    public List<CompletableFuture<Result>> validateAll (final Iterable<? extends Source> documents) throws SchematronException
+    {
+        return validateAll(documents, null, DefaultExecutor.get(), DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Validates documents in parallel.
+     *
+     * <p>All documents are validated with the same compiled validation stylesheet. At most maxInFlight documents are
+     * validated at the same time: this method blocks until a running validation finishes before it submits the next
+     * document, and returns when the last document was submitted. Each future completes with the validation result
+     * of its document, or exceptionally with the SchematronException of its document, and can be used to process the
+     * results in the order they complete. A Stream of sources can be passed as {@code stream::iterator}.</p>
+     *
+     * @param  documents   The documents to validate
+     * @param  parameters  Parameters for the validation stylesheet
+     * @param  executor    The executor running the validations
+     * @param  maxInFlight Maximum number of documents validated at the same time
+     * @return One future validation result per document, in the order of the documents
+     * @throws SchematronException Interrupted while waiting to submit a document
+     */
+    public List<CompletableFuture<Result>> validateAll (final Iterable<? extends Source> documents, final Map<String, Object> parameters, final Executor executor, final int maxInFlight) throws SchematronException
+    {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Maximum number of documents in flight must be positive");
+        }
+
+        final Semaphore permits = new Semaphore(maxInFlight);
+        final List<CompletableFuture<Result>> results = new ArrayList<CompletableFuture<Result>>();
+        for (Source document : documents) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SchematronException("Interrupted while waiting to submit a document", e);
+            }
+            CompletableFuture<Result> result;
+            boolean submitted = false;
+            try {
+                result = CompletableFuture.supplyAsync(() -> validateUnchecked(document, parameters), executor);
+                submitted = true;
+            } finally {
+                if (!submitted) {
+                    permits.release();
+                }
+            }
+            result.whenComplete((report, failure) -> permits.release());
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Validates the records of a large document in parallel using the default executor.
+     *
+     * @param  document The document to validate
+     * @param  record   Name of the record element
+     * @return The merged validation result
+     * @throws SchematronException If the document cannot be read or a record cannot be validated
+     * @see #validateRecords(Source, QName, Map, Executor, int)
+     */
+    public Result validateRecords (final Source document, final QName record) throws SchematronException
+    {
+        return validateRecords(document, record, null, DefaultExecutor.get(), DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Validates the records of a large document in parallel.
+     *
+     * <p>The document is streamed and cut into one fragment per record element. A fragment holds the record and the
+     * start tags of its ancestors with their attributes and namespace declarations, but no siblings of the record.
+     * The fragments are validated on the executor and their reports merged in document order, with locations
+     * rewritten to the full document. At most maxInFlight fragments are held in memory, so the memory used does not
+     * depend on the size of the document but on the size of the records and the number of findings.</p>
+     *
+     * <p>Splitting requires the rules to be local to a record. Findings on the ancestors of the records are merged
+     * once, and rules that fired without a finding are not part of the merged report.</p>
+     *
+     * @param  document    The document to validate, a StreamSource or SAXSource
+     * @param  record      Name of the record element
+     * @param  parameters  Parameters for the validation stylesheet
+     * @param  executor    The executor running the validations
+     * @param  maxInFlight Maximum number of records validated at the same time
+     * @return The merged validation result
+     * @throws SchematronException If the document cannot be read or a record cannot be validated
+     */
+    public Result validateRecords (final Source document, final QName record, final Map<String, Object> parameters, final Executor executor, final int maxInFlight) throws SchematronException
+    {
+        if (record == null) {
+            throw new IllegalArgumentException("Record element name may not be null");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Maximum number of records in flight must be positive");
+        }
+        return RecordSplitter.validate(this, document, record, parameters, executor, maxInFlight);
+    }
+
+    /**
+     * Return the profile of all validations so far.
+     *
+     * @return Profile entries ordered by descending time
+     * @throws IllegalStateException If the Schematron was not compiled with {@link #PROFILE_OPTION}
+     */
+    public List<ProfileEntry> getProfile ()
+    {
+        return Collections.unmodifiableList(getProfiler().getProfile());
+    }
+
+    /**
+     * Discard the profile of all validations so far, for example after warming up.
+     *
+     * @throws IllegalStateException If the Schematron was not compiled with {@link #PROFILE_OPTION}
+     */
+    public void resetProfile ()
+    {
+        getProfiler().reset();
+    }
+
+    /**
+     * Return a Schematron for a validation stylesheet written by the {@link Precompiler}.
+     *
+     * <p>The stylesheet is found by the context class loader of the current thread, or by the class loader of this
+     * class if there is none, and compiled with the default TransformerFactory.</p>
+     *
+     * @param name Resource name of the validation stylesheet, e.g. {@code schemas/invoice.xsl}
+     * @return The Schematron
+     * @throws SchematronException If the stylesheet is not found, corrupt, or cannot be compiled
+     */
+    public static Schematron loadPrecompiled (final String name) throws SchematronException
+    {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (classLoader == null) {
+            classLoader = Schematron.class.getClassLoader();
+        }
+        return loadPrecompiled(name, classLoader, null);
+    }
+
+    /**
+     * Return a Schematron for a validation stylesheet written by the {@link Precompiler}.
+     *
+     * <p>The Schematron does not run the transpiler. If the metadata of the stylesheet is found next to it, the
+     * checksum of the stylesheet is verified.</p>
+     *
+     * @param name Resource name of the validation stylesheet
+     * @param classLoader Class loader finding the stylesheet, may not be null
+     * @param transformerFactory TransformerFactory or null to use the default factory
+     * @return The Schematron
+     * @throws SchematronException If the stylesheet is not found, corrupt, or cannot be compiled
+     */
+    public static Schematron loadPrecompiled (final String name, final ClassLoader classLoader, final TransformerFactory transformerFactory) throws SchematronException
+    {
+        if (name == null) {
+            throw new IllegalArgumentException("Name may not be null");
+        }
+        if (classLoader == null) {
+            throw new IllegalArgumentException("Class loader may not be null");
+        }
+        TransformerFactory factory = transformerFactory;
+        if (factory == null) {
+            factory = Compiler.getDefaultTransformerFactory();
+        }
+        return new Schematron(PrecompiledStylesheet.load(name, classLoader, factory), factory);
+    }
+
+    /**
+     * Compile a Schematron to a validation stylesheet and return the stylesheet's Templates.
+     *
+     * @param adapter Transpiler adapter
+     * @param schematron Schematron source
+     * @param phase Validation phase or null
+     * @param transformerFactory TransformerFactory or null to use the default factory
+     * @param options Compiler options or null
+     * @return The compiled validation stylesheet
+     * @throws SchematronException If compiling the validation stylesheet fails
+     */
+    static Templates newTemplates (final Adapter adapter, final Source schematron, final String phase, final TransformerFactory transformerFactory, final Map<String, Object> options) throws SchematronException
+    {
+        return newTemplates(adapter, schematron, phase, transformerFactory, options, null, null);
+    }
+
+    /**
+     * Compile a Schematron to a validation stylesheet instrumented by a profiler and return the stylesheet's Templates.
+     *
+     * @param adapter Transpiler adapter
+     * @param schematron Schematron source
+     * @param phase Validation phase or null
+     * @param transformerFactory TransformerFactory or null to use the default factory
+     * @param options Compiler options or null
+     * @param resolver Shared resolver or null
+     * @param profiler Profiler or null
+     * @return The compiled validation stylesheet
+     * @throws SchematronException If compiling the validation stylesheet fails
+     */
+    static Templates newTemplates (final Adapter adapter, final Source schematron, final String phase, final TransformerFactory transformerFactory, final Map<String, Object> options, final SharedResolver resolver, final Profiler profiler) throws SchematronException
+    {
         if (adapter == null) {
             throw new IllegalArgumentException("Adapter may not be null");
         }
-        this.adapter = adapter;
-        
         if (schematron == null) {
             throw new IllegalArgumentException("Source may not be null");
         }
 
         TransformerFactory factory = transformerFactory;
         if (factory == null) {
-            factory = TransformerFactory.newInstance();
-            factory.setURIResolver(resolver.getURIResolver());
+            factory = Compiler.getDefaultTransformerFactory();
         }
 
-        Document stylesheet = compile(factory, schematron, phase, options);
-        try {
-            Templates templates = factory.newTemplates(new DOMSource(stylesheet, stylesheet.getDocumentURI()));
-            XMLReader reader = new ResolvingXMLReader();
-            validator = new Validator(reader, templates);
-        } catch (TransformerException e) {
-            throw new SchematronException("Unable to create Validator instance", e);
+        Document stylesheet = compile(adapter, factory, schematron, phase, options, resolver);
+        if (profiler != null) {
+            if (!ParsedDocument.isSaxon(factory)) {
+                throw new SchematronException("Profiling requires Saxon");
+            }
+            profiler.instrument(stylesheet);
         }
+        return newTemplates(factory, stylesheet);
     }
 
-    public Result validate (final Source document) throws SchematronException
+    /**
+     * Return the Templates of a compiled validation stylesheet.
+     *
+     * @param transformerFactory TransformerFactory
+     * @param stylesheet Validation stylesheet
+     * @return The compiled validation stylesheet
+     * @throws SchematronException If compiling the validation stylesheet fails
+     */
+    static Templates newTemplates (final TransformerFactory transformerFactory, final Document stylesheet) throws SchematronException
     {
-        return validate(document, null);
+        return newTemplates(transformerFactory, DocumentSources.of(stylesheet));
     }
 
     /**
-     * Performs the validation and returns the validation result.
+     * Return the Templates of a serialized validation stylesheet.
+     *
+     * @param transformerFactory TransformerFactory
+     * @param stylesheet Validation stylesheet
+     * @return The compiled validation stylesheet
+     * @throws SchematronException If compiling the validation stylesheet fails
+     */
+    static Templates newTemplates (final TransformerFactory transformerFactory, final Source stylesheet) throws SchematronException
+    {
+        try {
+            return Instrumentation.createTemplates(stylesheet.getSystemId(), () -> transformerFactory.newTemplates(stylesheet));
+        } catch (TransformerException e) {
+            throw new SchematronException("Unable to create Validator instance", e);
+        }
+    }
+
+    /**
+     * Performs the validation and wraps a SchematronException in a CompletionException.
      *
      * @param  document   The document to validate
      * @param  parameters Parameters for the validation stylesheet
      * @return The validation result
+     */
+    Result validateUnchecked (final Source document, final Map<String, Object> parameters)
+    {
+        try {
+            return validate(document, parameters);
+        } catch (SchematronException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private Profiler getProfiler ()
+    {
+        if (profiler == null) {
+            throw new IllegalStateException("The Schematron was not compiled with the profile option");
+        }
+        return profiler;
+    }
+
+    /**
+     * Compile a Schematron to a validation stylesheet.
      *
-     * @throws SchematronException A checked exception occured during validation
+     * @param adapter Transpiler adapter
+     * @param transformerFactory TransformerFactory
+     * @param schema Schematron source
+     * @param phase Validation phase or null
+     * @param options Compiler options or null
+     * @return The validation stylesheet
+     * @throws SchematronException If compiling the validation stylesheet fails
      */
-    public Result validate (final Source document, final Map<String, Object> parameters) throws SchematronException
+    static Document compile (final Adapter adapter, final TransformerFactory transformerFactory, final Source schema, final String phase, final Map<String, Object> options) throws SchematronException
     {
-        return validator.validate(document, parameters);
+        return compile(adapter, transformerFactory, schema, phase, options, null);
     }
 
-    private Document compile (final TransformerFactory transformerFactory, final Source schema, final String phase, final Map<String, Object> options) throws SchematronException
+    /**
+     * Compile a Schematron to a validation stylesheet resolving with a shared resolver.
+     *
+     * @param adapter Transpiler adapter
+     * @param transformerFactory TransformerFactory
+     * @param schema Schematron source
+     * @param phase Validation phase or null
+     * @param options Compiler options or null
+     * @param resolver Shared resolver or null
+     * @return The validation stylesheet
+     * @throws SchematronException If compiling the validation stylesheet fails
+     */
+    static Document compile (final Adapter adapter, final TransformerFactory transformerFactory, final Source schema, final String phase, final Map<String, Object> options, final SharedResolver resolver) throws SchematronException
     {
-        Compiler compiler = new Compiler(adapter, transformerFactory);
+        Compiler compiler = new Compiler(adapter, transformerFactory, resolver);
         Map<String, Object> compilerOptions = new HashMap<String, Object>();
         if (options != null) {
             compilerOptions.putAll(options);
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+
+import org.w3c.dom.Document;
+
+import name.dmaus.schxslt.adapter.Adapter;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Cache of compiled validation stylesheets.
+ *
+ * <p>Validation stylesheets are keyed by a digest of the Schematron content including all included documents, the
+ * adapter, the phase, and the compiler options. Concurrent requests for the same key compile the validation
+ * stylesheet only once and share the result.</p>
+ *
+ * <p>A cache created with a directory also stores the transpiled validation stylesheets in this directory, where they
+ * are picked up by caches of later processes. The key of persistent entries additionally covers the transpiler
+ * stylesheets and the version of the XSLT processor, so entries of other versions are never used.</p>
+ */
+@ThreadSafe
+public final class SchematronCache
+{
+    private static final String COMPILE_FAILED = "Compiling the validation stylesheet failed";
+
+    private final ConcurrentMap<String, CompletableFuture<Templates>> entries = new ConcurrentHashMap<String, CompletableFuture<Templates>>();
+    private final StylesheetDirectory directory;
+
+    /**
+     * Create an in-memory cache.
+     */
+    public SchematronCache ()
+    {
+        this.directory = null;
+    }
+
+    /**
+     * Create a cache storing validation stylesheets in a directory.
+     *
+     * @param directory Cache directory, created if it does not exist
+     */
+    public SchematronCache (final Path directory)
+    {
+        if (directory == null) {
+            throw new IllegalArgumentException("Directory may not be null");
+        }
+        this.directory = new StylesheetDirectory(directory);
+    }
+
+    public Schematron newSchematron (final Adapter adapter, final Source schematron) throws SchematronException
+    {
+        return newSchematron(adapter, schematron, null, null, null);
+    }
+
+    public Schematron newSchematron (final Adapter adapter, final Source schematron, final String phase) throws SchematronException
+    {
+        return newSchematron(adapter, schematron, phase, null, null);
+    }
+
+    /**
+     * Return a Schematron sharing the compiled validation stylesheet with all other Schematrons of the same key.
+     *
+     * <p>A Schematron compiled with {@link Schematron#PROFILE_OPTION} collects its own profile and is not
+     * cached.</p>
+     *
+     * @param adapter Transpiler adapter, may not be null
+     * @param schematron Schematron source, may not be null
+     * @param phase Validation phase
+     * @param transformerFactory TransformerFactory to use, possibly with custom URIResolver
+     * @param options Compiler options
+     * @return The Schematron
+     * @throws SchematronException If compiling the validation stylesheet fails
+     */
+    public Schematron newSchematron (final Adapter adapter, final Source schematron, final String phase, final TransformerFactory transformerFactory, final Map<String, Object> options) throws SchematronException
+    {
+        if (adapter == null) {
+            throw new IllegalArgumentException("Adapter may not be null");
+        }
+        if (schematron == null) {
+            throw new IllegalArgumentException("Source may not be null");
+        }
+        if (Profiler.newInstance(options) != null) {
+            return new Schematron(adapter, schematron, phase, transformerFactory, options);
+        }
+
+        TransformerFactory factory = transformerFactory;
+        if (factory == null) {
+            factory = Compiler.getDefaultTransformerFactory();
+        }
+
+        Document document = Compiler.load(factory, schematron);
+        String key = createKey(document, adapter, phase, factory, options);
+        DOMSource source = new DOMSource(document, document.getDocumentURI());
+
+        return new Schematron(getTemplates(key, adapter, source, phase, factory, options), factory);
+    }
+
+    /**
+     * Return the number of cached validation stylesheets.
+     *
+     * @return Number of cached validation stylesheets
+     */
+    public int size ()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Remove all cached validation stylesheets.
+     */
+    public void clear ()
+    {
+        entries.clear();
+    }
+
+    private Templates getTemplates (final String key, final Adapter adapter, final DOMSource schematron, final String phase, final TransformerFactory transformerFactory, final Map<String, Object> options) throws SchematronException
+    {
+        CompletableFuture<Templates> entry = new CompletableFuture<Templates>();
+        CompletableFuture<Templates> cached = entries.putIfAbsent(key, entry);
+        if (cached == null) {
+            try {
+                entry.complete(newTemplates(key, adapter, schematron, phase, transformerFactory, options));
+            } catch (SchematronException e) {
+                entry.completeExceptionally(e);
+            } finally {
+                if (!entry.isDone() || entry.isCompletedExceptionally()) {
+                    entries.remove(key, entry);
+                    entry.completeExceptionally(new SchematronException(COMPILE_FAILED));
+                }
+            }
+            cached = entry;
+        }
+        return await(cached);
+    }
+
+    private Templates newTemplates (final String key, final Adapter adapter, final DOMSource schematron, final String phase, final TransformerFactory transformerFactory, final Map<String, Object> options) throws SchematronException
+    {
+        Templates templates = null;
+        if (directory != null) {
+            templates = directory.read(key, transformerFactory, schematron.getSystemId());
+        }
+        if (templates == null) {
+            Document stylesheet = Schematron.compile(adapter, transformerFactory, schematron, phase, options);
+            if (directory != null) {
+                directory.write(key, transformerFactory, stylesheet);
+            }
+            templates = Schematron.newTemplates(transformerFactory, stylesheet);
+        }
+        return templates;
+    }
+
+    private Templates await (final CompletableFuture<Templates> entry) throws SchematronException
+    {
+        try {
+            return entry.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SchematronException("Interrupted while waiting for the validation stylesheet", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SchematronException cause) {
+                throw cause;
+            }
+            throw new SchematronException(COMPILE_FAILED, e.getCause());
+        }
+    }
+
+    /**
+     * Return the key of a validation stylesheet.
+     *
+     * @param schematron Schematron document
+     * @param adapter Transpiler adapter
+     * @param phase Validation phase or null
+     * @param transformerFactory TransformerFactory
+     * @param options Compiler options or null
+     * @return Digest of the Schematron, its included documents, the transpiler, and the compiler options
+     * @throws SchematronException If an included document or transpiler stylesheet cannot be read
+     */
+    static String createKey (final Document schematron, final Adapter adapter, final String phase, final TransformerFactory transformerFactory, final Map<String, Object> options) throws SchematronException
+    {
+        SchemaDigest digest = new SchemaDigest(transformerFactory);
+        digest.update(schematron);
+        digest.update(adapter.getClass().getName());
+        digest.update(transformerFactory.getClass().getName());
+        digest.update(ProcessorVersion.of(transformerFactory));
+        String queryBinding = schematron.getDocumentElement().getAttribute("queryBinding").toLowerCase(Locale.ROOT);
+        for (String step : Compiler.getPipelineSteps(adapter, queryBinding, transformerFactory, options)) {
+            digest.updateTranspiler(step);
+        }
+        digest.update(phase);
+        if (options != null) {
+            Map<String, Object> sortedOptions = new TreeMap<String, Object>(options);
+            for (Map.Entry<String, Object> option : sortedOptions.entrySet()) {
+                digest.update(option.getKey());
+                digest.update(String.valueOf(option.getValue()));
+            }
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.List;
+
+/**
+ * Receives timings and counters of compilations and validations.
+ *
+ * <p>Listeners are registered with {@link Instrumentation#addListener(SchematronListener)} or discovered with the
+ * ServiceLoader. They are called synchronously by the compiling or validating thread, possibly by many threads at
+ * once, and should return quickly. All durations are in nanoseconds. Exceptions thrown by a listener are logged and
+ * do not fail the compilation or validation.</p>
+ */
+public interface SchematronListener
+{
+    /**
+     * Called after transpiler stylesheets were applied to a Schematron.
+     *
+     * <p>If the compiler chains the pipeline steps with SAX events the steps run together and are reported once.
+     * Otherwise every step is reported on its own.</p>
+     *
+     * @param systemId System identifier of the Schematron or null
+     * @param steps Transpiler stylesheets that were applied
+     * @param duration Duration of the steps
+     */
+    default void transpiled (final String systemId, final List<String> steps, final long duration)
+    {
+    }
+
+    /**
+     * Called after a validation stylesheet was compiled to Templates.
+     *
+     * @param systemId System identifier of the Schematron or null
+     * @param duration Duration of the compilation
+     */
+    default void templatesCreated (final String systemId, final long duration)
+    {
+    }
+
+    /**
+     * Called after a document was validated.
+     *
+     * @param metrics Timings and counters of the validation
+     */
+    default void validated (final ValidationMetrics metrics)
+    {
+    }
+}
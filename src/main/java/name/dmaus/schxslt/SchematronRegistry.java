@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import name.dmaus.schxslt.adapter.Adapter;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Registry of Schematrons identified by schema ids.
+ *
+ * <p>A Schematron is located and compiled when its schema id is requested for the first time. Concurrent requests for
+ * a schema id that is being compiled wait for the compilation and share the result. Compiled Schematrons are kept
+ * until the sum of their weights exceeds the maximum weight, then the least recently used ones are evicted. The
+ * weight of a Schematron is estimated from the number of nodes of its validation stylesheet. A Schematron that is
+ * evicted while in use stays usable, a later request compiles it again.</p>
+ *
+ * <p>All Schematrons of a registry are compiled with the same adapter, TransformerFactory, and compiler options. The
+ * registry does not watch the Schematron files, use {@link #invalidate(String)} after a Schematron was changed.</p>
+ */
+@ThreadSafe
+public final class SchematronRegistry
+{
+    /**
+     * Estimated size in bytes of a compiled node of a validation stylesheet.
+     */
+    static final long NODE_WEIGHT = 256;
+
+    private static final String COMPILE_FAILED = "Compiling the validation stylesheet failed";
+
+    private final Adapter adapter;
+    private final SchematronLocator locator;
+    private final long maxWeight;
+    private final TransformerFactory transformerFactory;
+    private final Map<String, Object> options;
+    private final LongAdder[] counters = new LongAdder[RegistryStatistics.COUNTERS];
+
+    private final Map<String, CompletableFuture<Entry>> entries = new LinkedHashMap<String, CompletableFuture<Entry>>(16, 0.75f, true);
+    private long weight;
+
+    public SchematronRegistry (final Adapter adapter, final SchematronLocator locator, final long maxWeight)
+    {
+        this(adapter, locator, maxWeight, null, null);
+    }
+
+    /**
+     * Create a registry.
+     *
+     * @param adapter Transpiler adapter, may not be null
+     * @param locator Locator of the Schematron sources, may not be null
+     * @param maxWeight Maximum estimated size in bytes of the compiled Schematrons
+     * @param transformerFactory TransformerFactory or null to use the default factory
+     * @param options Compiler options or null
+     */
+    public SchematronRegistry (final Adapter adapter, final SchematronLocator locator, final long maxWeight, final TransformerFactory transformerFactory, final Map<String, Object> options)
+    {
+        if (adapter == null) {
+            throw new IllegalArgumentException("Adapter may not be null");
+        }
+        if (locator == null) {
+            throw new IllegalArgumentException("Locator may not be null");
+        }
+        if (maxWeight < 1) {
+            throw new IllegalArgumentException("Maximum weight must be positive");
+        }
+        if (Profiler.newInstance(options) != null) {
+            throw new IllegalArgumentException("A registry cannot hold profiled Schematrons");
+        }
+        this.adapter = adapter;
+        this.locator = locator;
+        this.maxWeight = maxWeight;
+        if (transformerFactory == null) {
+            this.transformerFactory = Compiler.getDefaultTransformerFactory();
+        } else {
+            this.transformerFactory = transformerFactory;
+        }
+        if (options == null) {
+            this.options = null;
+        } else {
+            this.options = new HashMap<String, Object>(options);
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Return the Schematron of a schema id, compiling it if necessary.
+     *
+     * @param id Schema id
+     * @return The Schematron
+     * @throws SchematronException If the Schematron cannot be located or compiled
+     */
+    public Schematron get (final String id) throws SchematronException
+    {
+        if (id == null) {
+            throw new IllegalArgumentException("Schema id may not be null");
+        }
+
+        CompletableFuture<Entry> entry;
+        boolean compile = false;
+        synchronized (entries) {
+            entry = entries.get(id);
+            if (entry == null) {
+                entry = new CompletableFuture<Entry>();
+                entries.put(id, entry);
+                compile = true;
+            }
+        }
+
+        if (compile) {
+            counters[RegistryStatistics.MISSES].increment();
+            compile(id, entry);
+        } else {
+            counters[RegistryStatistics.HITS].increment();
+        }
+        return await(entry).getSchematron();
+    }
+
+    /**
+     * Remove the Schematron of a schema id.
+     *
+     * @param id Schema id
+     */
+    public void invalidate (final String id)
+    {
+        synchronized (entries) {
+            remove(entries.remove(id));
+        }
+    }
+
+    /**
+     * Remove all Schematrons.
+     */
+    public void clear ()
+    {
+        synchronized (entries) {
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * Return the current counters of the registry.
+     *
+     * @return Statistics
+     */
+    public RegistryStatistics getStatistics ()
+    {
+        long[] values = new long[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            values[i] = counters[i].sum();
+        }
+        synchronized (entries) {
+            int size = 0;
+            for (CompletableFuture<Entry> entry : entries.values()) {
+                if (entry.isDone() && !entry.isCompletedExceptionally()) {
+                    size++;
+                }
+            }
+            return new RegistryStatistics(values, size, weight);
+        }
+    }
+
+    private void compile (final String id, final CompletableFuture<Entry> entry)
+    {
+        final long start = System.nanoTime();
+        try {
+            Source source = locator.locate(id);
+            if (source == null) {
+                throw new SchematronException("Unknown schema id " + id);
+            }
+            Document stylesheet = Schematron.compile(adapter, transformerFactory, source, null, options);
+            Schematron schematron = new Schematron(Schematron.newTemplates(transformerFactory, stylesheet), transformerFactory);
+            entry.complete(new Entry(schematron, NODE_WEIGHT * countNodes(stylesheet)));
+            counters[RegistryStatistics.COMPILES].increment();
+        } catch (SchematronException e) {
+            entry.completeExceptionally(e);
+        } finally {
+            counters[RegistryStatistics.COMPILE_TIME].add(System.nanoTime() - start);
+            if (!entry.isDone() || entry.isCompletedExceptionally()) {
+                counters[RegistryStatistics.FAILURES].increment();
+                synchronized (entries) {
+                    entries.remove(id, entry);
+                }
+                entry.completeExceptionally(new SchematronException(COMPILE_FAILED));
+            } else {
+                added(id, entry);
+            }
+        }
+    }
+
+    /**
+     * Account for the weight of a compiled Schematron and evict the least recently used ones if necessary.
+     */
+    private void added (final String id, final CompletableFuture<Entry> entry)
+    {
+        synchronized (entries) {
+            if (entries.get(id) == entry) {
+                weight += entry.join().getWeight();
+                evict(entry);
+            }
+        }
+    }
+
+    private void evict (final CompletableFuture<Entry> added)
+    {
+        Iterator<CompletableFuture<Entry>> eldest = entries.values().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            CompletableFuture<Entry> candidate = eldest.next();
+            if (candidate != added && candidate.isDone()) {
+                eldest.remove();
+                remove(candidate);
+                counters[RegistryStatistics.EVICTIONS].increment();
+            }
+        }
+    }
+
+    private void remove (final CompletableFuture<Entry> entry)
+    {
+        if (entry != null && entry.isDone() && !entry.isCompletedExceptionally()) {
+            weight -= entry.join().getWeight();
+        }
+    }
+
+    private static long countNodes (final Node node)
+    {
+        long count = 1;
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+
+    private static Entry await (final CompletableFuture<Entry> entry) throws SchematronException
+    {
+        try {
+            return entry.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SchematronException("Interrupted while waiting for the validation stylesheet", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SchematronException cause) {
+                throw cause;
+            }
+            throw new SchematronException(COMPILE_FAILED, e.getCause());
+        }
+    }
+
+    /**
+     * Compiled Schematron and its weight.
+     */
+    private static final class Entry
+    {
+        private final Schematron schematron;
+        private final long weight;
+
+        Entry (final Schematron schematron, final long weight)
+        {
+            this.schematron = schematron;
+            this.weight = weight;
+        }
+
+        Schematron getSchematron ()
+        {
+            return schematron;
+        }
+
+        long getWeight ()
+        {
+            return weight;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerFactory;
+
+import name.dmaus.schxslt.adapter.Adapter;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Schematron whose patterns are split into shards that validate a document concurrently.
+ *
+ * <p>The Schematron is compiled once. The validation stylesheet is then copied for each shard and every pattern that
+ * does not belong to the shard is switched off: it reports nothing and the tests of its rules are not evaluated. The shards
+ * hold consecutive patterns of about the same number.</p>
+ *
+ * <p>A document is parsed once into a {@link ParsedDocument} and validated by all shards on the executor. The reports
+ * of the shards are merged into one report holding the patterns in schema order. With Saxon the shards share the
+ * parsed tree and run in parallel, other XSLT processors run them one after another.</p>
+ */
+@ThreadSafe
+public final class ShardedSchematron
+{
+    private final List<Schematron> shards = new ArrayList<Schematron>();
+    private final TransformerFactory transformerFactory;
+
+    public ShardedSchematron (final Adapter adapter, final Source schematron, final int shards) throws SchematronException
+    {
+        this(adapter, schematron, null, null, null, shards);
+    }
+
+    /**
+     * Compile a Schematron and split its patterns into shards.
+     *
+     * @param adapter Transpiler adapter, may not be null
+     * @param schematron Schematron source, may not be null
+     * @param phase Validation phase
+     * @param transformerFactory TransformerFactory to use, possibly with custom URIResolver
+     * @param options Compiler options
+     * @param shards Number of shards, reduced to the number of patterns if there are fewer patterns
+     * @throws SchematronException If compiling the validation stylesheet fails or its patterns cannot be identified
+     */
+    public ShardedSchematron (final Adapter adapter, final Source schematron, final String phase, final TransformerFactory transformerFactory, final Map<String, Object> options, final int shards) throws SchematronException
+    {
+        if (adapter == null) {
+            throw new IllegalArgumentException("Adapter may not be null");
+        }
+        if (schematron == null) {
+            throw new IllegalArgumentException("Source may not be null");
+        }
+        if (shards < 1) {
+            throw new IllegalArgumentException("Number of shards must be positive");
+        }
+        if (Profiler.newInstance(options) != null) {
+            throw new IllegalArgumentException("A sharded Schematron cannot be profiled");
+        }
+
+        TransformerFactory factory = transformerFactory;
+        if (factory == null) {
+            factory = Compiler.getDefaultTransformerFactory();
+        }
+        this.transformerFactory = factory;
+
+        Document stylesheet = Schematron.compile(adapter, factory, schematron, phase, options);
+        for (Document shard : split(stylesheet, shards)) {
+            this.shards.add(new Schematron(Schematron.newTemplates(factory, shard), factory));
+        }
+    }
+
+    /**
+     * Return the number of shards.
+     *
+     * @return Number of shards
+     */
+    public int getShardCount ()
+    {
+        return shards.size();
+    }
+
+    public Result validate (final Source document) throws SchematronException
+    {
+        return validate(document, null, DefaultExecutor.get());
+    }
+
+    /**
+     * Validate a document with all shards and merge their reports.
+     *
+     * @param  document   The document to validate
+     * @param  parameters Parameters for the validation stylesheets
+     * @param  executor   The executor running the shards
+     * @return The merged validation result
+     * @throws SchematronException If the document cannot be parsed or a shard fails
+     */
+    public Result validate (final Source document, final Map<String, Object> parameters, final Executor executor) throws SchematronException
+    {
+        ParsedDocument parsedDocument = ParsedDocument.parse(document, transformerFactory);
+        List<CompletableFuture<Result>> results = parsedDocument.validateAll(shards, parameters, executor);
+
+        Document report = join(results.get(0)).getValidationReport();
+        for (int i = 1; i < results.size(); i++) {
+            appendPatterns(report, join(results.get(i)).getValidationReport());
+        }
+        return new Result(report);
+    }
+
+    /**
+     * Split a validation stylesheet into stylesheets for consecutive patterns.
+     */
+    private static List<Document> split (final Document stylesheet, final int shards) throws SchematronException
+    {
+        int patterns = PhaseSelection.getActivePatterns(stylesheet).size();
+        if (patterns == 0) {
+            throw new SchematronException("Unable to identify the patterns of the validation stylesheet, the patterns cannot be split into shards");
+        }
+
+        int count = Math.min(shards, patterns);
+        List<Document> stylesheets = new ArrayList<Document>();
+        for (int shard = 0; shard < count; shard++) {
+            List<String> conditions = new ArrayList<String>();
+            for (int pattern = 0; pattern < patterns; pattern++) {
+                conditions.add(String.valueOf(pattern * count / patterns == shard) + "()");
+            }
+            Document copy = (Document)stylesheet.cloneNode(true);
+            copy.setDocumentURI(stylesheet.getDocumentURI());
+            PhaseSelection.guardPatterns(copy, "shard-pattern-", conditions);
+            stylesheets.add(copy);
+        }
+        return stylesheets;
+    }
+
+    /**
+     * Append the active patterns, fired rules, and findings of a shard to the merged report.
+     */
+    private static void appendPatterns (final Document report, final Document shardReport)
+    {
+        Element root = report.getDocumentElement();
+        boolean started = false;
+        for (Node node = shardReport.getDocumentElement().getFirstChild(); node != null; node = node.getNextSibling()) {
+            started |= Result.isSvrlElement(node, "active-pattern");
+            if (started) {
+                root.appendChild(report.importNode(node, true));
+            }
+        }
+    }
+
+    private static Result join (final CompletableFuture<Result> result) throws SchematronException
+    {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SchematronException) {
+                throw (SchematronException)cause;
+            }
+            throw e;
+        }
+    }
+}
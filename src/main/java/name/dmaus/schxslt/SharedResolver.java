@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+
+import org.xml.sax.InputSource;
+
+import org.xmlresolver.ResourceResponse;
+import org.xmlresolver.XMLResolver;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Catalog resolver and resource cache shared by Schematron and Compiler instances.
+ *
+ * <p>A shared resolver parses the XML catalogs once and keeps the resources it resolved in memory, up to a maximum
+ * number of bytes. When the maximum is exceeded the least recently used resources are dropped. Resources are cached
+ * by their absolute URI after catalog lookup, so a resource included by many schemas is read once. This covers
+ * Schematron includes, the transpiler stylesheets, and documents loaded by the validation stylesheets. External
+ * entities of validated documents are resolved with the shared catalogs, but are not cached.</p>
+ *
+ * <p>A shared resolver is a URIResolver and can also be set on a TransformerFactory. Cached resources are not
+ * checked for changes: call {@link #clear()} after a resource was modified.</p>
+ */
+@ThreadSafe
+public final class SharedResolver implements URIResolver
+{
+    /**
+     * Default maximum number of bytes held in the cache.
+     */
+    public static final long DEFAULT_MAX_SIZE = 16L * 1024 * 1024;
+
+    private static final SharedResolver DEFAULT = new SharedResolver(new XMLResolver(), 0);
+
+    private final XMLResolver xmlResolver;
+    private final URIResolver delegate;
+    private final long maxSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private final Map<String, byte[]> resources = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long size;
+
+    /**
+     * Create a shared resolver with the default catalogs and cache size.
+     */
+    public SharedResolver ()
+    {
+        this(new XMLResolver(), DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Create a shared resolver.
+     *
+     * @param xmlResolver Catalog resolver, may not be null
+     * @param maxSize Maximum number of bytes held in the cache, 0 to not cache resources
+     */
+    public SharedResolver (final XMLResolver xmlResolver, final long maxSize)
+    {
+        if (xmlResolver == null) {
+            throw new IllegalArgumentException("XML resolver may not be null");
+        }
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Maximum cache size may not be negative");
+        }
+        this.xmlResolver = xmlResolver;
+        this.delegate = xmlResolver.getURIResolver();
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return the resolver used if none is given.
+     *
+     * <p>The default resolver shares the catalogs of the default configuration and does not cache resources.</p>
+     *
+     * @return Default resolver
+     */
+    static SharedResolver getDefault ()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Resolve a URI with the catalogs and return the resource, from the cache if possible.
+     *
+     * @param href URI reference
+     * @param base Base URI or null
+     * @return Source of the resource or null if the resource should be read by the caller
+     * @throws TransformerException If the resource cannot be read
+     */
+    @Override
+    public Source resolve (final String href, final String base) throws TransformerException
+    {
+        if (maxSize <= 0) {
+            return delegate.resolve(href, base);
+        }
+        return resolveCached(href, base);
+    }
+
+    private Source resolveCached (final String href, final String base) throws TransformerException
+    {
+        final String uri = getAbsoluteURI(href, base);
+        byte[] content = null;
+        if (uri != null) {
+            content = get(uri);
+        }
+        if (content != null) {
+            hits.increment();
+            return new StreamSource(new ByteArrayInputStream(content), uri);
+        }
+        return fetch(href, base, uri);
+    }
+
+    private Source fetch (final String href, final String base, final String uri) throws TransformerException
+    {
+        Source source = delegate.resolve(href, base);
+        if (uri != null && source != null) {
+            misses.increment();
+            InputSource input = SAXSource.sourceToInputSource(source);
+            if (input != null && input.getByteStream() != null) {
+                byte[] content = read(input.getByteStream(), uri);
+                if (content.length <= maxSize) {
+                    put(uri, content);
+                }
+                source = new StreamSource(new ByteArrayInputStream(content), source.getSystemId());
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Return the number of requests answered from the cache.
+     *
+     * @return Number of cache hits
+     */
+    public long getHitCount ()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * Return the number of requests that read a resource.
+     *
+     * @return Number of cache misses
+     */
+    public long getMissCount ()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * Return the number of bytes held in the cache.
+     *
+     * @return Size of the cached resources
+     */
+    public long getSize ()
+    {
+        synchronized (resources) {
+            return size;
+        }
+    }
+
+    /**
+     * Remove all resources from the cache.
+     */
+    public void clear ()
+    {
+        synchronized (resources) {
+            resources.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Return the catalog resolver.
+     *
+     * @return Catalog resolver
+     */
+    XMLResolver getXMLResolver ()
+    {
+        return xmlResolver;
+    }
+
+    private String getAbsoluteURI (final String href, final String base)
+    {
+        ResourceResponse response = xmlResolver.lookupUri(href, base);
+        String uri = null;
+        try {
+            if (response.isResolved()) {
+                uri = response.getURI().toString();
+            } else if (response.request.getAbsoluteURI() != null) {
+                uri = response.request.getAbsoluteURI().toString();
+            }
+        } catch (URISyntaxException e) {
+            // not cached, the delegate reports the invalid URI
+        }
+        return uri;
+    }
+
+    private byte[] get (final String uri)
+    {
+        synchronized (resources) {
+            return resources.get(uri);
+        }
+    }
+
+    private void put (final String uri, final byte[] content)
+    {
+        synchronized (resources) {
+            byte[] previous = resources.put(uri, content);
+            if (previous != null) {
+                size -= previous.length;
+            }
+            size += content.length;
+            Iterator<byte[]> eldest = resources.values().iterator();
+            while (size > maxSize) {
+                size -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    private static byte[] read (final InputStream stream, final String uri) throws TransformerException
+    {
+        try (InputStream input = stream) {
+            return input.readAllBytes();
+        } catch (IOException e) {
+            throw new TransformerException("Unable to read " + uri, e);
+        }
+    }
+}
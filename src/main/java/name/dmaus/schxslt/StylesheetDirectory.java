@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Document;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Directory of transpiled validation stylesheets.
+ *
+ * <p>Each stylesheet is stored in a file named after its key and the SHA-256 checksum of its content. The file is
+ * written to a temporary file first and moved in place, so the entry exists as soon as the move completes and
+ * concurrent readers never see a partially written entry. Corrupt entries are reported as absent and deleted, and
+ * older entries of a key are deleted when a new one is written.</p>
+ */
+@ThreadSafe
+final class StylesheetDirectory
+{
+    private static final String STYLESHEET_SUFFIX = ".xsl";
+    private static final char SEPARATOR = '-';
+
+    private final Path directory;
+
+    StylesheetDirectory (final Path directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Read the stylesheet stored with a key.
+     *
+     * @param key Key of the stylesheet
+     * @param transformerFactory TransformerFactory used to compile the stylesheet
+     * @param systemId System identifier of the Schematron the stylesheet was compiled from
+     * @return The compiled stylesheet or null if there is no usable stylesheet stored with the key
+     */
+    Templates read (final String key, final TransformerFactory transformerFactory, final String systemId)
+    {
+        Templates templates = null;
+        for (Path stylesheet : list(key)) {
+            if (templates == null) {
+                templates = readEntry(key, stylesheet, transformerFactory, systemId);
+            }
+        }
+        return templates;
+    }
+
+    /**
+     * Store a stylesheet with a key, replacing any existing entry.
+     *
+     * <p>Failing to store the stylesheet is not an error: the directory is a cache and the entry is rebuilt on the
+     * next run.</p>
+     *
+     * @param key Key of the stylesheet
+     * @param transformerFactory TransformerFactory used to serialize the stylesheet
+     * @param stylesheet The stylesheet
+     */
+    void write (final String key, final TransformerFactory transformerFactory, final Document stylesheet)
+    {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            Transformer serializer = transformerFactory.newTransformer();
+            serializer.transform(new DOMSource(stylesheet), new StreamResult(buffer));
+            byte[] content = buffer.toByteArray();
+
+            Files.createDirectories(directory);
+            String filename = key + SEPARATOR + checksum(content) + STYLESHEET_SUFFIX;
+            Path entry = directory.resolve(filename);
+            move(entry, filename, content);
+            for (Path stylesheetFile : list(key)) {
+                if (!stylesheetFile.equals(entry)) {
+                    delete(stylesheetFile);
+                }
+            }
+        } catch (IOException | TransformerException e) {
+            // The temporary file was removed, no entry was written
+        }
+    }
+
+    private Templates readEntry (final String key, final Path stylesheet, final TransformerFactory transformerFactory, final String systemId)
+    {
+        String filename = String.valueOf(stylesheet.getFileName());
+        String expected = filename.substring(key.length() + 1, filename.length() - STYLESHEET_SUFFIX.length());
+        Templates templates = null;
+        try {
+            byte[] content = Files.readAllBytes(stylesheet);
+            if (expected.equals(checksum(content))) {
+                templates = transformerFactory.newTemplates(new StreamSource(new ByteArrayInputStream(content), systemId));
+            }
+        } catch (IOException | TransformerException e) {
+            // Unreadable entries are treated like corrupt ones and rebuilt
+        }
+        if (templates == null) {
+            delete(stylesheet);
+        }
+        return templates;
+    }
+
+    /**
+     * Return the stylesheet files stored with a key.
+     */
+    private List<Path> list (final String key)
+    {
+        List<Path> stylesheets = new ArrayList<Path>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, key + SEPARATOR + "*" + STYLESHEET_SUFFIX)) {
+                for (Path entry : entries) {
+                    stylesheets.add(entry);
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                // An unreadable directory holds no usable entries
+            }
+        }
+        return stylesheets;
+    }
+
+    private void move (final Path entry, final String filename, final byte[] content) throws IOException
+    {
+        Path temporary = Files.createTempFile(directory, filename, ".tmp");
+        try {
+            Files.write(temporary, content);
+            try {
+                Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private void delete (final Path stylesheet)
+    {
+        try {
+            Files.deleteIfExists(stylesheet);
+        } catch (IOException e) {
+            // The entry stays and is checked again by the next read
+        }
+    }
+
+    /**
+     * Return the SHA-256 checksum of a stylesheet.
+     *
+     * @param content Serialized stylesheet
+     * @return Checksum as hexadecimal string
+     */
+    static String checksum (final byte[] content)
+    {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 message digest not available", e);
+        }
+    }
+}
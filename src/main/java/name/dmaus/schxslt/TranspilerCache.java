@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Compiled transpiler stylesheets of one TransformerFactory and resolver.
+ *
+ * <p>Concurrent requests for the same stylesheet wait for the first one to compile it, requests for other stylesheets
+ * are not blocked. A failed compilation is not cached.</p>
+ *
+ * <p>The caches returned by {@link #of(TransformerFactory, URIResolver)} are shared by all compilers using the same
+ * factory and resolver. They are keyed weakly by factory and resolver and held softly: the compiled stylesheets
+ * reference their factory, so a strongly held cache would keep its key alive forever. A cache unused for a while is
+ * released under memory pressure, and with it the factory once it is no longer used elsewhere.</p>
+ */
+@ThreadSafe
+final class TranspilerCache
+{
+    private static final Map<TransformerFactory, Map<URIResolver, Reference<TranspilerCache>>> CACHES = new WeakHashMap<TransformerFactory, Map<URIResolver, Reference<TranspilerCache>>>();
+
+    private final ConcurrentMap<String, CompletableFuture<Templates>> transpilers = new ConcurrentHashMap<String, CompletableFuture<Templates>>();
+    private final TransformerFactory transformerFactory;
+    private final URIResolver resolver;
+
+    TranspilerCache (final TransformerFactory transformerFactory, final URIResolver resolver)
+    {
+        this.transformerFactory = transformerFactory;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Return the cache shared by all compilers using a factory and resolver.
+     *
+     * @param transformerFactory TransformerFactory compiling the transpiler stylesheets
+     * @param resolver Resolver reading the transpiler stylesheets
+     * @return The cache
+     */
+    static TranspilerCache of (final TransformerFactory transformerFactory, final URIResolver resolver)
+    {
+        synchronized (CACHES) {
+            Map<URIResolver, Reference<TranspilerCache>> caches = CACHES.computeIfAbsent(transformerFactory, key -> new WeakHashMap<URIResolver, Reference<TranspilerCache>>());
+            Reference<TranspilerCache> reference = caches.get(resolver);
+            TranspilerCache cache = null;
+            if (reference != null) {
+                cache = reference.get();
+            }
+            if (cache == null) {
+                cache = new TranspilerCache(transformerFactory, resolver);
+                caches.put(resolver, new SoftReference<TranspilerCache>(cache));
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Return the Templates of a transpiler stylesheet.
+     *
+     * @param step URI of the transpiler stylesheet
+     * @return The compiled stylesheet
+     * @throws TransformerException If the stylesheet cannot be resolved or compiled
+     */
+    Templates get (final String step) throws TransformerException
+    {
+        CompletableFuture<Templates> entry = new CompletableFuture<Templates>();
+        CompletableFuture<Templates> cached = transpilers.putIfAbsent(step, entry);
+        if (cached == null) {
+            try {
+                entry.complete(transformerFactory.newTemplates(resolver.resolve(step, null)));
+            } catch (TransformerException e) {
+                entry.completeExceptionally(e);
+            } finally {
+                if (!entry.isDone() || entry.isCompletedExceptionally()) {
+                    transpilers.remove(step, entry);
+                    entry.completeExceptionally(new TransformerException("Unable to compile transpiler stylesheet " + step));
+                }
+            }
+            cached = entry;
+        }
+        try {
+            return cached.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TransformerException) {
+                throw (TransformerException)cause;
+            }
+            throw e;
+        }
+    }
+}
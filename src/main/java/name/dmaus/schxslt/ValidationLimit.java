@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Stops a validation once it found a number of failed assertions or successful reports.
+ *
+ * <p>Only findings whose role and flag match the limit are counted. An empty set of roles or flags matches any
+ * finding. The result of a validation that was stopped holds the findings up to and including the one that
+ * reached the limit and is marked as truncated.</p>
+ *
+ * <p>Stopping early requires Saxon. Other XSLT processors run the validation to the end.</p>
+ */
+@Immutable
+public final class ValidationLimit
+{
+    private final int maxFindings;
+    private final Set<String> roles;
+    private final Set<String> flags;
+
+    /**
+     * Stop after a number of findings of any role and flag.
+     *
+     * @param maxFindings Number of findings
+     */
+    public ValidationLimit (final int maxFindings)
+    {
+        this(maxFindings, null, null);
+    }
+
+    /**
+     * Stop after a number of findings with one of the given roles and flags.
+     *
+     * @param maxFindings Number of findings
+     * @param roles Roles to count or null to count any role
+     * @param flags Flags to count or null to count any flag
+     */
+    public ValidationLimit (final int maxFindings, final Set<String> roles, final Set<String> flags)
+    {
+        if (maxFindings < 1) {
+            throw new IllegalArgumentException("The maximum number of findings must be at least 1");
+        }
+        this.maxFindings = maxFindings;
+        this.roles = copyOf(roles);
+        this.flags = copyOf(flags);
+    }
+
+    /**
+     * Return the number of findings after which the validation stops.
+     *
+     * @return Number of findings
+     */
+    public int getMaxFindings ()
+    {
+        return maxFindings;
+    }
+
+    /**
+     * Return true if a finding with the given role and flag counts towards the limit.
+     *
+     * @param role Role of the finding or empty string
+     * @param flag Flag of the finding or empty string
+     * @return True if the finding counts
+     */
+    boolean matches (final String role, final String flag)
+    {
+        return (roles.isEmpty() || roles.contains(role)) && (flags.isEmpty() || flags.contains(flag));
+    }
+
+    private static Set<String> copyOf (final Set<String> values)
+    {
+        if (values == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(new HashSet<String>(values));
+    }
+}
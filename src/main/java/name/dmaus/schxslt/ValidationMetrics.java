@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Timings and counters of a validation.
+ *
+ * <p>Durations are in nanoseconds. Processors that parse the document while running the validation stylesheet do not
+ * report a separate parse time, the parsing is part of the transform time.</p>
+ */
+@Immutable
+public final class ValidationMetrics
+{
+    private final String systemId;
+    private final long parseTime;
+    private final long transformTime;
+    private final long resultTime;
+    private final long inputSize;
+    private final int findingCount;
+
+    ValidationMetrics (final String systemId, final long parseTime, final long transformTime, final long resultTime, final long inputSize, final int findingCount)
+    {
+        this.systemId = systemId;
+        this.parseTime = parseTime;
+        this.transformTime = transformTime;
+        this.resultTime = resultTime;
+        this.inputSize = inputSize;
+        this.findingCount = findingCount;
+    }
+
+    /**
+     * Return the system identifier of the validated document.
+     *
+     * @return System identifier or null
+     */
+    public String getSystemId ()
+    {
+        return systemId;
+    }
+
+    /**
+     * Return the time spent parsing the document.
+     *
+     * @return Parse time or -1 if the document was parsed by the transformation
+     */
+    public long getParseTime ()
+    {
+        return parseTime;
+    }
+
+    /**
+     * Return the time spent running the validation stylesheet.
+     *
+     * @return Transform time
+     */
+    public long getTransformTime ()
+    {
+        return transformTime;
+    }
+
+    /**
+     * Return the time spent creating the validation result from the report.
+     *
+     * @return Result time
+     */
+    public long getResultTime ()
+    {
+        return resultTime;
+    }
+
+    /**
+     * Return the size of the document.
+     *
+     * <p>The size is the number of bytes or characters read from the stream of the document source, or the size of
+     * a local file. It is not known for other sources.</p>
+     *
+     * @return Size of the document or -1 if it is not known
+     */
+    public long getInputSize ()
+    {
+        return inputSize;
+    }
+
+    /**
+     * Return the number of failed assertions and successful reports.
+     *
+     * @return Number of findings
+     */
+    public int getFindingCount ()
+    {
+        return findingCount;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt;
+
+import java.io.FilterInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Measures a single validation and reports it to the {@link Instrumentation} when done.
+ *
+ * <p>A timer is used by one thread only. The timer {@link #DISABLED} measures nothing and reports nothing.</p>
+ */
+final class ValidationTimer
+{
+    static final ValidationTimer DISABLED = new ValidationTimer(null, false);
+
+    private static final String FILE_SCHEME = "file:";
+
+    private final String systemId;
+    private final boolean enabled;
+    private final JfrListener.ValidationEvent event;
+    private final long start;
+    private long parsed = -1;
+    private long transformed;
+    private long inputSize = -1;
+
+    ValidationTimer (final String systemId)
+    {
+        this(systemId, true);
+    }
+
+    private ValidationTimer (final String systemId, final boolean enabled)
+    {
+        this.systemId = systemId;
+        this.enabled = enabled;
+        if (enabled) {
+            this.event = JfrListener.beginValidation();
+            this.start = System.nanoTime();
+        } else {
+            this.event = null;
+            this.start = 0;
+        }
+    }
+
+    /**
+     * Return an input source that counts the bytes or characters read from the document.
+     *
+     * <p>The input source is copied and not modified. A document without a stream is counted by the size of its
+     * local file.</p>
+     *
+     * @param input Input source of the document
+     * @return The counting input source or the input source itself if the timer is disabled
+     */
+    InputSource count (final InputSource input)
+    {
+        if (!enabled) {
+            return input;
+        }
+
+        InputSource counted = new InputSource(input.getSystemId());
+        counted.setPublicId(input.getPublicId());
+        counted.setEncoding(input.getEncoding());
+        if (input.getByteStream() != null) {
+            inputSize = 0;
+            counted.setByteStream(new CountingInputStream(input.getByteStream(), this));
+        } else if (input.getCharacterStream() != null) {
+            inputSize = 0;
+            counted.setCharacterStream(new CountingReader(input.getCharacterStream(), this));
+        } else {
+            inputSize = getFileSize(input.getSystemId());
+        }
+        return counted;
+    }
+
+    /**
+     * Mark the end of parsing the document.
+     */
+    void parsed ()
+    {
+        if (enabled) {
+            parsed = System.nanoTime();
+        }
+    }
+
+    /**
+     * Mark the end of running the validation stylesheet.
+     */
+    void transformed ()
+    {
+        if (enabled) {
+            transformed = System.nanoTime();
+        }
+    }
+
+    /**
+     * Report the validation to the instrumentation.
+     *
+     * @param result Validation result
+     * @return The validation result
+     */
+    Result completed (final Result result)
+    {
+        if (enabled) {
+            long now = System.nanoTime();
+            long parseTime = -1;
+            long transformStart = start;
+            if (parsed >= 0) {
+                parseTime = parsed - start;
+                transformStart = parsed;
+            }
+            Instrumentation.validated(event, new ValidationMetrics(systemId, parseTime, transformed - transformStart, now - transformed, inputSize, result.getFindingCount()));
+        }
+        return result;
+    }
+
+    private void add (final long count)
+    {
+        if (count > 0) {
+            inputSize += count;
+        }
+    }
+
+    private static long getFileSize (final String systemId)
+    {
+        long size = -1;
+        if (systemId != null && systemId.startsWith(FILE_SCHEME)) {
+            try {
+                size = Files.size(Path.of(URI.create(systemId)));
+            } catch (IOException | IllegalArgumentException e) {
+                size = -1;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Counts the bytes read from a stream.
+     */
+    private static final class CountingInputStream extends FilterInputStream
+    {
+        private final ValidationTimer timer;
+
+        CountingInputStream (final InputStream stream, final ValidationTimer timer)
+        {
+            super(stream);
+            this.timer = timer;
+        }
+
+        @Override
+        public int read () throws IOException
+        {
+            int value = super.read();
+            if (value >= 0) {
+                timer.add(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read (final byte[] buffer, final int offset, final int length) throws IOException
+        {
+            int count = super.read(buffer, offset, length);
+            timer.add(count);
+            return count;
+        }
+
+        @Override
+        public long skip (final long length) throws IOException
+        {
+            long count = super.skip(length);
+            timer.add(count);
+            return count;
+        }
+    }
+
+    /**
+     * Counts the characters read from a reader.
+     */
+    private static final class CountingReader extends FilterReader
+    {
+        private final ValidationTimer timer;
+
+        CountingReader (final Reader reader, final ValidationTimer timer)
+        {
+            super(reader);
+            this.timer = timer;
+        }
+
+        @Override
+        public int read () throws IOException
+        {
+            int value = super.read();
+            if (value >= 0) {
+                timer.add(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read (final char[] buffer, final int offset, final int length) throws IOException
+        {
+            int count = super.read(buffer, offset, length);
+            timer.add(count);
+            return count;
+        }
+
+        @Override
+        public long skip (final long length) throws IOException
+        {
+            long count = super.skip(length);
+            timer.add(count);
+            return count;
+        }
+    }
+}
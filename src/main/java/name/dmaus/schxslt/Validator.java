@@ -24,54 +24,248 @@
 
 package name.dmaus.schxslt;
 
+import java.util.Deque;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.sax.SAXSource;
 
 import org.w3c.dom.Document;
 
+import org.xml.sax.InputSource;
 import org.xml.sax.XMLReader;
 
+import org.xmlresolver.XMLResolver;
+import org.xmlresolver.tools.ResolvingXMLReader;
+
 import net.jcip.annotations.ThreadSafe;
 
 /**
  * Validates a document with a compiled Schematron.
+ *
+ * <p>XMLReader instances are not thread-safe. Each validation borrows a reader from a pool and returns it when done,
+ * so concurrent validations never share a reader and do not have to wait for each other. Transformers are created
+ * per validation because a transformer that was reset still holds on to the documents it has read.</p>
+ *
+ * <p>Validation stylesheets compiled by Saxon run with the {@link SaxonEngine} unless the validation report is
+ * streamed or the validation has a limit.</p>
+ *
+ * <p>A validator with a {@link Profiler} passes the probes of the validation stylesheet to a {@link ProbeHandler} and
+ * activates the profiler on the validating thread while the validation stylesheet runs.</p>
  */
 @ThreadSafe
 final class Validator
 {
+    private static final String SAXON_TRANSFORMER = "net.sf.saxon.jaxp.TransformerImpl";
+    private static final String SAXON_TEMPLATES = "net.sf.saxon.jaxp.TemplatesImpl";
+    private static final String REPORT_FINDINGS = "{http://dmaus.name/ns/schxslt-java}report-findings";
+    private static final String TRANSFORMATION_FAILED = "Error running transformation stylesheet";
+
+    private static final int MAX_IDLE_READERS = 2 * Runtime.getRuntime().availableProcessors();
+
     private final Templates schema;
-    private final XMLReader reader;
+    private final XMLResolver resolver;
+    private final TransformerFactory transformerFactory;
+    private final Deque<XMLReader> readers = new ConcurrentLinkedDeque<XMLReader>();
+    private final SaxonEngine saxonEngine;
+    private final Profiler profiler;
+    private final URIResolver uriResolver;
+
+    Validator (final XMLResolver resolver, final Templates schema, final TransformerFactory transformerFactory)
+    {
+        this(resolver, schema, transformerFactory, SAXON_TEMPLATES.equals(schema.getClass().getName()), null, null);
+    }
 
-    Validator (final XMLReader reader, final Templates schema)
+    Validator (final XMLResolver resolver, final Templates schema, final TransformerFactory transformerFactory, final Profiler profiler, final URIResolver uriResolver)
     {
-        this.reader = reader;
+        this(resolver, schema, transformerFactory, SAXON_TEMPLATES.equals(schema.getClass().getName()), profiler, uriResolver);
+    }
+
+    Validator (final XMLResolver resolver, final Templates schema, final TransformerFactory transformerFactory, final boolean useSaxonEngine)
+    {
+        this(resolver, schema, transformerFactory, useSaxonEngine, null, null);
+    }
+
+    /**
+     * Create a validator.
+     *
+     * @param resolver Resolver of the XML readers
+     * @param schema Validation stylesheet
+     * @param transformerFactory TransformerFactory that created the validation stylesheet
+     * @param useSaxonEngine True to run the validation stylesheet with the Saxon s9api, only for Saxon Templates
+     * @param profiler Profiler of the validation stylesheet or null
+     * @param uriResolver Resolver of the documents loaded by the validation stylesheet or null to use the resolver of
+     *                    the validation stylesheet
+     */
+    Validator (final XMLResolver resolver, final Templates schema, final TransformerFactory transformerFactory, final boolean useSaxonEngine, final Profiler profiler, final URIResolver uriResolver)
+    {
+        this.resolver = resolver;
         this.schema = schema;
+        this.transformerFactory = transformerFactory;
+        this.profiler = profiler;
+        this.uriResolver = uriResolver;
+        if (useSaxonEngine) {
+            this.saxonEngine = new SaxonEngine(transformerFactory);
+        } else {
+            this.saxonEngine = null;
+        }
     }
 
     public Result validate (final Source document, final Map<String, Object> parameters) throws SchematronException
     {
+        ValidationTimer timer = Instrumentation.startValidation(document.getSystemId());
+        if (saxonEngine != null) {
+            return timer.completed(validateWithSaxon(document, parameters, timer));
+        }
+
+        DOMResult result = new DOMResult();
+        try {
+            transform(newTransformer(parameters), document, result, timer);
+        } catch (TransformerException e) {
+            throw new SchematronException(TRANSFORMATION_FAILED, e);
+        }
+        return timer.completed(new Result((Document)result.getNode()));
+    }
+
+    public Result validate (final Source document, final Map<String, Object> parameters, final javax.xml.transform.Result report) throws SchematronException
+    {
+        ValidationTimer timer = Instrumentation.startValidation(document.getSystemId());
+        ReportHandler handler = ReportHandler.newInstance(report, transformerFactory);
         try {
-            Transformer transformer = schema.newTransformer();
-            if (parameters != null) {
-                for (Map.Entry<String, Object> param : parameters.entrySet()) {
-                    transformer.setParameter(param.getKey(), param.getValue());
-                }
-            }
+            transform(newTransformer(parameters), document, handler.asResult(report.getSystemId()), timer);
+        } catch (TransformerException e) {
+            throw new SchematronException(TRANSFORMATION_FAILED, e);
+        }
+        return timer.completed(new Result(handler.getCounts()));
+    }
 
+    /**
+     * Validate and stop at the limit.
+     *
+     * <p>A validation stylesheet compiled by Saxon with the compiler option {@link Schematron#LIMIT_OPTION} reports
+     * every finding as a message. Saxon passes the messages to a {@link FindingCollector} that stops the
+     * transformation when the limit is reached. Any other validation stylesheet ignores the parameter asking for the
+     * messages and runs to the end, as do other processors, which do not support a message handler.</p>
+     */
+    public Result validate (final Source document, final Map<String, Object> parameters, final ValidationLimit limit) throws SchematronException
+    {
+        ValidationTimer timer = Instrumentation.startValidation(document.getSystemId());
+        try {
+            Transformer transformer = newTransformer(parameters);
+            if (SAXON_TRANSFORMER.equals(transformer.getClass().getName())) {
+                return timer.completed(validate(transformer, document, limit, timer));
+            }
             DOMResult result = new DOMResult();
-            SAXSource source = new SAXSource(reader, SAXSource.sourceToInputSource(document));
-            transformer.transform(source, result);
+            transform(transformer, document, result, timer);
+            return timer.completed(new Result((Document)result.getNode()));
+        } catch (TransformerException e) {
+            throw new SchematronException(TRANSFORMATION_FAILED, e);
+        }
+    }
 
-            return new Result((Document)result.getNode());
+    private Result validate (final Transformer transformer, final Source document, final ValidationLimit limit, final ValidationTimer timer) throws TransformerException, SchematronException
+    {
+        FindingCollector collector = FindingCollector.install(transformer, limit);
+        transformer.setParameter(REPORT_FINDINGS, Boolean.TRUE);
 
+        DOMResult result = new DOMResult();
+        Document report;
+        try {
+            transform(transformer, document, result, timer);
+            report = (Document)result.getNode();
+        } catch (TransformerException e) {
+            if (!collector.isLimitReached()) {
+                throw new SchematronException(TRANSFORMATION_FAILED, e);
+            }
+            timer.transformed();
+            report = collector.createReport();
+        }
+        return new Result(report, collector.isLimitReached());
+    }
+
+    private Result validateWithSaxon (final Source document, final Map<String, Object> parameters, final ValidationTimer timer) throws SchematronException
+    {
+        Transformer transformer;
+        try {
+            transformer = newTransformer(parameters);
         } catch (TransformerException e) {
-            throw new SchematronException("Error running transformation stylesheet", e);
+            throw new SchematronException(TRANSFORMATION_FAILED, e);
+        }
+        Profiler.activate(profiler);
+        try {
+            InputSource input = SAXSource.sourceToInputSource(document);
+            if (input == null) {
+                return saxonEngine.validate(transformer, document, timer);
+            }
+            XMLReader reader = borrowReader();
+            Result result = saxonEngine.validate(transformer, new SAXSource(reader, timer.count(input)), timer);
+            returnReader(reader);
+            return result;
+        } finally {
+            Profiler.deactivate(profiler);
+        }
+    }
+
+    private Transformer newTransformer (final Map<String, Object> parameters) throws TransformerException
+    {
+        Transformer transformer = schema.newTransformer();
+        if (uriResolver != null) {
+            transformer.setURIResolver(uriResolver);
+        }
+        if (parameters != null) {
+            for (Map.Entry<String, Object> param : parameters.entrySet()) {
+                transformer.setParameter(param.getKey(), param.getValue());
+            }
+        }
+        if (profiler != null) {
+            ProbeHandler.install(transformer);
+        }
+        return transformer;
+    }
+
+    private void transform (final Transformer transformer, final Source document, final javax.xml.transform.Result result, final ValidationTimer timer) throws TransformerException
+    {
+        Profiler.activate(profiler);
+        try {
+            InputSource input = SAXSource.sourceToInputSource(document);
+            if (input == null) {
+                transformer.transform(document, result);
+            } else {
+                XMLReader reader = borrowReader();
+                transformer.transform(new SAXSource(reader, timer.count(input)), result);
+                returnReader(reader);
+            }
+        } finally {
+            Profiler.deactivate(profiler);
+        }
+        timer.transformed();
+    }
+
+    private XMLReader borrowReader ()
+    {
+        XMLReader reader = readers.pollFirst();
+        if (reader == null) {
+            reader = new ResolvingXMLReader(resolver);
+        }
+        return reader;
+    }
+
+    /**
+     * Return a reader to the pool, unless the pool already holds enough idle readers.
+     *
+     * <p>Readers of failed validations are not returned and left to the garbage collector.</p>
+     */
+    private void returnReader (final XMLReader reader)
+    {
+        if (readers.size() < MAX_IDLE_READERS) {
+            readers.offerFirst(reader);
         }
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2019-2021 by David Maus <dmaus@dmaus.name>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package name.dmaus.schxslt.precompiler;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.stream.StreamSource;
+
+import name.dmaus.schxslt.Precompiler;
+import name.dmaus.schxslt.SchematronException;
+import name.dmaus.schxslt.adapter.Adapter;
+import name.dmaus.schxslt.adapter.SchXslt;
+import name.dmaus.schxslt.adapter.SchXslt2;
+
+/**
+ * Command line interface of the {@link Precompiler}.
+ *
+ * <pre>
+ * java name.dmaus.schxslt.precompiler.Main [-a adapter] [-p phase] [-o name=value]... -d directory schema.sch...
+ * </pre>
+ *
+ * <p>The adapter is {@code schxslt} (default), {@code schxslt2}, or the name of a class implementing
+ * {@link Adapter}. Every Schematron file is compiled to a validation stylesheet in the directory, named after the
+ * file without its extension.</p>
+ */
+public final class Main
+{
+    private static final String USAGE = "Usage: java name.dmaus.schxslt.precompiler.Main [-a adapter] [-p phase] [-o name=value]... -d directory schema.sch...";
+    private static final String SCHXSLT = "schxslt";
+
+    private String adapter = SCHXSLT;
+    private String phase;
+    private Path directory;
+    private final Map<String, Object> options = new LinkedHashMap<String, Object>();
+    private final List<Path> schemas = new ArrayList<Path>();
+
+    private Main ()
+    {
+    }
+
+    public static void main (final String[] arguments)
+    {
+        try {
+            Main main = new Main();
+            main.parse(arguments);
+            main.run();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        } catch (SchematronException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void parse (final String[] arguments)
+    {
+        int index = 0;
+        while (index < arguments.length) {
+            String argument = arguments[index];
+            if (argument.startsWith("-")) {
+                if (index + 1 == arguments.length) {
+                    throw new IllegalArgumentException("Missing value of option " + argument);
+                }
+                setOption(argument, arguments[index + 1]);
+                index += 2;
+            } else {
+                schemas.add(Path.of(argument));
+                index++;
+            }
+        }
+        if (directory == null || schemas.isEmpty()) {
+            throw new IllegalArgumentException("Output directory and Schematron files are required");
+        }
+    }
+
+    private void setOption (final String option, final String value)
+    {
+        if ("-a".equals(option)) {
+            adapter = value;
+        } else if ("-p".equals(option)) {
+            phase = value;
+        } else if ("-d".equals(option)) {
+            directory = Path.of(value);
+        } else if ("-o".equals(option)) {
+            int separator = value.indexOf('=');
+            if (separator < 1) {
+                throw new IllegalArgumentException("Compiler option must be name=value: " + value);
+            }
+            options.put(value.substring(0, separator), value.substring(separator + 1));
+        } else {
+            throw new IllegalArgumentException("Unknown option " + option);
+        }
+    }
+
+    private void run () throws SchematronException
+    {
+        Precompiler precompiler = new Precompiler(createAdapter());
+        for (Path schema : schemas) {
+            String name = schema.toFile().getName();
+            int dot = name.lastIndexOf('.');
+            if (dot > 0) {
+                name = name.substring(0, dot);
+            }
+            precompiler.precompile(new StreamSource(schema.toUri().toString()), phase, options, directory, name);
+        }
+    }
+
+    private Adapter createAdapter ()
+    {
+        Adapter instance;
+        if (SCHXSLT.equals(adapter)) {
+            instance = new SchXslt();
+        } else if ("schxslt2".equals(adapter)) {
+            instance = new SchXslt2();
+        } else {
+            try {
+                instance = Class.forName(adapter).asSubclass(Adapter.class).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                throw new IllegalArgumentException("Unable to create adapter " + adapter, e);
+            }
+        }
+        return instance;
+    }
+}
@@ -0,0 +1,47 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!--
+  Instruments a validation stylesheet to send a copy of every failed assertion and successful report as xsl:message,
+  if the validation stylesheet parameter {http://dmaus.name/ns/schxslt-java}report-findings is true. The parameter
+  defaults to false and the validation stylesheet behaves exactly as before.
+-->
+<xsl:transform version="1.0"
+               xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+               xmlns:xsla="http://dmaus.name/ns/schxslt-java/xsl-alias"
+               xmlns:svrl="http://purl.oclc.org/dsdl/svrl"
+               xmlns:schxslt-java="http://dmaus.name/ns/schxslt-java">
+
+  <xsl:namespace-alias stylesheet-prefix="xsla" result-prefix="xsl"/>
+
+  <xsl:template match="/xsl:transform | /xsl:stylesheet">
+    <xsl:copy>
+      <xsl:apply-templates select="@*"/>
+      <xsl:apply-templates select="xsl:import"/>
+      <xsla:param name="schxslt-java:report-findings" select="false()"/>
+      <xsl:apply-templates select="node()[not(self::xsl:import)]"/>
+    </xsl:copy>
+  </xsl:template>
+
+  <xsl:template match="svrl:failed-assert | svrl:successful-report">
+    <xsla:choose>
+      <xsla:when test="$schxslt-java:report-findings">
+        <xsla:variable name="schxslt-java:finding">
+          <xsl:copy-of select="."/>
+        </xsla:variable>
+        <xsla:copy-of select="$schxslt-java:finding"/>
+        <xsla:message>
+          <xsla:copy-of select="$schxslt-java:finding"/>
+        </xsla:message>
+      </xsla:when>
+      <xsla:otherwise>
+        <xsl:copy-of select="."/>
+      </xsla:otherwise>
+    </xsla:choose>
+  </xsl:template>
+
+  <xsl:template match="node() | @*">
+    <xsl:copy>
+      <xsl:apply-templates select="node() | @*"/>
+    </xsl:copy>
+  </xsl:template>
+
+</xsl:transform>
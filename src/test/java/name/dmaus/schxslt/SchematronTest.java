@@ -28,10 +28,47 @@ import name.dmaus.schxslt.adapter.SchXslt;
 import name.dmaus.schxslt.adapter.SchXslt2;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
+import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xmlresolver.XMLResolver;
+import org.xml.sax.helpers.DefaultHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SchematronTest
@@ -41,6 +78,7 @@ public class SchematronTest
     final String simpleSchema30 = "/simple-schema-30.sch";
     final String simpleSchema20catalog = "/simple-schema-20-catalog.sch";
     final String simpleSchema20WithPhase = "/simple-schema-20-phase.sch";
+    final String failingSchema20 = "/failing-schema-20.sch";
 
     @BeforeAll
     public static void init ()
@@ -89,6 +127,23 @@ public class SchematronTest
         assertTrue(result.isValid());
     }
 
+    @Test
+    public void extNodeParamForXSLT20 () throws Exception
+    {
+        Schematron schematron = new Schematron(new SchXslt(), getResourceAsStream(simpleSchema20), "external-param");
+
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        Document value = documentBuilderFactory.newDocumentBuilder().parse(new InputSource(new StringReader("<value>1</value>")));
+
+        HashMap<String,Object> map = new HashMap<String,Object>();
+        map.put("external-param", value);
+        assertTrue(schematron.validate(getResourceAsStream(simpleSchema20), map).isValid());
+
+        map.put("external-param", new StreamSource(new StringReader("<value>1</value>")));
+        assertTrue(schematron.validate(getResourceAsStream(simpleSchema20), map).isValid());
+    }
+
 
     @Test
     public void newSchematronForXSLT20 () throws Exception
@@ -118,6 +173,639 @@ public class SchematronTest
         assertTrue(result.isValid());
     }
 
+    @Test
+    public void cacheSharesValidationStylesheet () throws Exception
+    {
+        SchematronCache cache = new SchematronCache();
+
+        Schematron first = cache.newSchematron(new SchXslt(), getResourceAsStream(simpleSchema20catalog));
+        Schematron second = cache.newSchematron(new SchXslt(), getResourceAsStream(simpleSchema20catalog));
+        assertEquals(1, cache.size());
+        assertTrue(first.validate(getResourceAsStream(simpleSchema10)).isValid());
+        assertTrue(second.validate(getResourceAsStream(simpleSchema10)).isValid());
+
+        cache.newSchematron(new SchXslt(), getResourceAsStream(simpleSchema20), "always-valid");
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void persistentCacheRebuildsCorruptEntries (@TempDir final Path directory) throws Exception
+    {
+        new SchematronCache(directory).newSchematron(new SchXslt(), getResourceAsStream(simpleSchema20), "always-valid");
+
+        List<Path> stylesheets = listFiles(directory);
+        assertEquals(1, stylesheets.size());
+        Path stylesheet = stylesheets.get(0);
+        assertTrue(stylesheet.toString().endsWith(StylesheetDirectory.checksum(Files.readAllBytes(stylesheet)) + ".xsl"));
+
+        Schematron cached = new SchematronCache(directory).newSchematron(new SchXslt(), getResourceAsStream(simpleSchema20), "always-valid");
+        assertTrue(cached.validate(getResourceAsStream(simpleSchema20)).isValid());
+
+        Files.writeString(stylesheet, "corrupt");
+        Schematron rebuilt = new SchematronCache(directory).newSchematron(new SchXslt(), getResourceAsStream(simpleSchema20), "always-valid");
+        assertTrue(rebuilt.validate(getResourceAsStream(simpleSchema20)).isValid());
+
+        stylesheets = listFiles(directory);
+        assertEquals(1, stylesheets.size());
+        assertTrue(Files.readString(stylesheets.get(0)).contains("http://www.w3.org/1999/XSL/Transform"));
+    }
+
+    private List<Path> listFiles (final Path directory) throws Exception
+    {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void reloadChangedSchema (@TempDir final Path directory) throws Exception
+    {
+        Path schema = directory.resolve("schema.sch");
+        Path pattern = directory.resolve("pattern.sch");
+        Files.writeString(schema, "<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='xslt2'><include href='pattern.sch'/></schema>");
+        Files.writeString(pattern, "<pattern xmlns='http://purl.oclc.org/dsdl/schematron'><rule context='/'><assert test='true()'/></rule></pattern>");
+
+        try (ReloadingSchematron schematron = new ReloadingSchematron(new SchXslt(), schema)) {
+            Schematron first = schematron.getSchematron();
+            assertTrue(schematron.validate(getResourceAsStream(simpleSchema20)).isValid());
+
+            schematron.reload();
+            assertTrue(first == schematron.getSchematron());
+
+            Files.writeString(pattern, "<pattern xmlns='http://purl.oclc.org/dsdl/schematron'><rule context='/'><assert test='false()'/></rule></pattern>");
+            schematron.reload();
+            assertFalse(schematron.validate(getResourceAsStream(simpleSchema20)).isValid());
+            assertTrue(first.validate(getResourceAsStream(simpleSchema20)).isValid());
+
+            Files.writeString(pattern, "<pattern");
+            assertThrows(SchematronException.class, () -> schematron.reload());
+            assertTrue(schematron.getLastFailure() != null);
+            assertFalse(schematron.validate(getResourceAsStream(simpleSchema20)).isValid());
+        }
+    }
+
+    @Test
+    public void watchFilesOfFailedReload (@TempDir final Path directory) throws Exception
+    {
+        Path schema = directory.resolve("schema.sch");
+        Path pattern = directory.resolve("pattern.sch");
+        Files.writeString(schema, "<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='xslt2'><pattern><rule context='/'><assert test='true()'/></rule></pattern></schema>");
+
+        try (ReloadingSchematron schematron = new ReloadingSchematron(new SchXslt(), schema)) {
+            Files.writeString(pattern, "<pattern xmlns='http://purl.oclc.org/dsdl/schematron'><rule context='/'><assert test='(('/></rule></pattern>");
+            Files.writeString(schema, "<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='xslt2'><include href='pattern.sch'/></schema>");
+            for (int i = 0; i < 100 && schematron.getLastFailure() == null; i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(schematron.getLastFailure() != null);
+
+            Files.writeString(pattern, "<pattern xmlns='http://purl.oclc.org/dsdl/schematron'><rule context='/'><assert test='false()'/></rule></pattern>");
+            for (int i = 0; i < 100 && schematron.getLastFailure() != null; i++) {
+                Thread.sleep(100);
+            }
+            assertNull(schematron.getLastFailure());
+            assertFalse(schematron.validate(getResourceAsStream(simpleSchema20)).isValid());
+        }
+    }
+
+    @Test
+    public void loadPrecompiledSchema (@TempDir final Path directory) throws Exception
+    {
+        Path stylesheet = new Precompiler(new SchXslt()).precompile(getResourceAsStream(failingSchema20), null, null, directory.resolve("schemas"), "failing");
+        assertTrue(Files.exists(directory.resolve("schemas/failing.properties")));
+
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[] {directory.toUri().toURL()}, null)) {
+            Schematron schematron = Schematron.loadPrecompiled("schemas/failing.xsl", classLoader, null);
+            Schematron expected = new Schematron(new SchXslt(), getResourceAsStream(failingSchema20));
+            assertEquals(expected.validate(getResourceAsStream(simpleSchema20)).getValidationMessages(), schematron.validate(getResourceAsStream(simpleSchema20)).getValidationMessages());
+
+            Files.writeString(stylesheet, Files.readString(stylesheet).replace("failed-assert", "failed-asserts"));
+            assertThrows(SchematronException.class, () -> Schematron.loadPrecompiled("schemas/failing.xsl", classLoader, null));
+        }
+    }
+
+    @Test
+    public void validateRecords () throws Exception
+    {
+        String schema = "<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='xslt2'><ns prefix='x' uri='urn:x'/><pattern><rule context='/'><assert test='false()'/></rule><rule context='x:record'><assert test='@valid'/></rule></pattern></schema>";
+        StringBuilder document = new StringBuilder("<records xmlns='urn:x'><records/><records>");
+        for (int i = 0; i < 100; i++) {
+            document.append(i % 3 == 0 ? "<record/>" : "<record valid=''/>");
+        }
+        document.append("</records></records>");
+
+        Schematron schematron = new Schematron(new SchXslt(), new StreamSource(new StringReader(schema)));
+        Result expected = schematron.validate(new StreamSource(new StringReader(document.toString())));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Result result = schematron.validateRecords(new StreamSource(new StringReader(document.toString())), new QName("urn:x", "record"), null, executor, 3);
+            assertEquals(35, result.getFindingCount());
+            assertEquals(expected.getValidationMessages(), result.getValidationMessages());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void validateRecordsResolvesRelativeSystemIds () throws Exception
+    {
+        String schema = "<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='xslt2'><ns prefix='x' uri='urn:x'/><pattern><rule context='x:record'><assert test='@valid'/></rule></pattern></schema>";
+        Path file = Files.createTempFile(Path.of("target"), "records", ".xml");
+        Files.writeString(file, "<records xmlns='urn:x'><record/><record valid=''/></records>");
+
+        Schematron schematron = new Schematron(new SchXslt(), new StreamSource(new StringReader(schema)));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Result result = schematron.validateRecords(new StreamSource(file.toString()), new QName("urn:x", "record"), null, executor, 1);
+            assertEquals(1, result.getFindingCount());
+            assertThrows(SchematronException.class, () -> schematron.validateRecords(new StreamSource("unknown:records.xml"), new QName("urn:x", "record"), null, executor, 1));
+        } finally {
+            executor.shutdown();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void revalidateChangedSubtrees (@TempDir final Path directory) throws Exception
+    {
+        String schema = "<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='xslt2'><ns prefix='x' uri='urn:x'/><pattern><rule context='x:record'><assert test='@valid'/><report test='x:item[@bad]'/></rule></pattern><pattern><rule context='x:item'><assert test='string(.)'/></rule></pattern></schema>";
+        StringBuilder document = new StringBuilder("<records xmlns='urn:x'>");
+        for (int i = 0; i < 20; i++) {
+            document.append(i % 3 == 0 ? "<record>" : "<record valid=''>").append("<item>a</item><item/></record>");
+        }
+        document.append("</records>");
+        Path file = directory.resolve("document.xml");
+        Files.writeString(file, document.toString());
+
+        IncrementalSchematron schematron = new IncrementalSchematron(new SchXslt(), new StreamSource(new StringReader(schema)));
+        assertTrue(schematron.isIncremental());
+        Result previous = schematron.validate(file);
+
+        Files.writeString(file, document.toString().replaceFirst("(<record)(>(<item>a</item><item/></record><record[^>]*>){2})", "$1 valid=''$2<item bad=''>b</item>"));
+        Result result = schematron.revalidate(file, previous, List.of("/Q{urn:x}records[1]/Q{urn:x}record[1]", "/Q{urn:x}records[1]/Q{urn:x}record[3]", "/Q{urn:x}records[1]/Q{urn:x}record[3]/Q{urn:x}item[1]"));
+        Result expected = schematron.validate(file);
+        assertEquals(expected.getFindingCount(), result.getFindingCount());
+        assertEquals(expected.getFindings().stream().map(finding -> finding.getPattern() + finding.getLocation()).collect(Collectors.toList()),
+                     result.getFindings().stream().map(finding -> finding.getPattern() + finding.getLocation()).collect(Collectors.toList()));
+
+        String global = "<schema xmlns='http://purl.oclc.org/dsdl/schematron'><pattern><rule context='record'><assert test='not(preceding-sibling::record/@id = @id)'/></rule></pattern></schema>";
+        assertFalse(new IncrementalSchematron(new SchXslt(), new StreamSource(new StringReader(global))).isIncremental());
+    }
+
+    @Test
+    public void shardedSchematronMergesPatternsInSchemaOrder () throws Exception
+    {
+        StringBuilder schema = new StringBuilder("<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='xslt2'>");
+        for (int i = 0; i < 5; i++) {
+            schema.append("<pattern id='p").append(i).append("'><rule context='r'><assert test='@v &lt; ").append(i).append("'/></rule></pattern>");
+        }
+        schema.append("</schema>");
+        String document = "<doc><r v='1'/><r v='3'/></doc>";
+
+        Schematron expected = new Schematron(new SchXslt(), new StreamSource(new StringReader(schema.toString())));
+        ShardedSchematron schematron = new ShardedSchematron(new SchXslt(), new StreamSource(new StringReader(schema.toString())), 3);
+        assertEquals(3, schematron.getShardCount());
+
+        Result result = schematron.validate(new StreamSource(new StringReader(document)));
+        assertEquals(6, result.getFindingCount());
+        assertEquals(expected.validate(new StreamSource(new StringReader(document))).getFindings().stream().map(finding -> finding.getPattern() + finding.getLocation()).collect(Collectors.toList()),
+                     result.getFindings().stream().map(finding -> finding.getPattern() + finding.getLocation()).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void optimizedKeysMatchUnoptimizedOutput () throws Exception
+    {
+        String schema = "<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='xslt2'><ns prefix='x' uri='urn:x'/><pattern><rule context='x:ref'><assert test='//x:item[@id = current()/@ref]'/><report test='count(//x:item[current()/@ref = @id]) &gt; 1'/></rule></pattern></schema>";
+        String document = "<doc xmlns='urn:x'><item id='a'/><item id='b'/><item id='b'/><ref ref='a'/><ref ref='b'/><ref ref='c'/></doc>";
+        Map<String, Object> options = Map.of(Schematron.OPTIMIZE_KEYS_OPTION, Boolean.TRUE);
+
+        Document stylesheet = new Compiler(new SchXslt()).compile(new StreamSource(new StringReader(schema)), options);
+        assertEquals(1, stylesheet.getElementsByTagNameNS("http://www.w3.org/1999/XSL/Transform", "key").getLength());
+
+        Schematron unoptimized = new Schematron(new SchXslt(), new StreamSource(new StringReader(schema)));
+        Schematron optimized = new Schematron(new SchXslt(), new StreamSource(new StringReader(schema)), null, null, options);
+        assertEquals(unoptimized.validate(new StreamSource(new StringReader(document))).getValidationMessages(), optimized.validate(new StreamSource(new StringReader(document))).getValidationMessages());
+
+        for (String resource : List.of(simpleSchema10, simpleSchema20)) {
+            unoptimized = new Schematron(new SchXslt(), getResourceAsStream(resource));
+            optimized = new Schematron(new SchXslt(), getResourceAsStream(resource), null, null, options);
+            assertEquals(unoptimized.validate(getResourceAsStream(resource)).getValidationMessages(), optimized.validate(getResourceAsStream(resource)).getValidationMessages());
+        }
+    }
+
+    @Test
+    public void validateBytesBuffersAndFiles (@TempDir final Path directory) throws Exception
+    {
+        Schematron schematron = new Schematron(new SchXslt(), getResourceAsStream(failingSchema20));
+        List<String> expected = schematron.validate(getResourceAsStream(simpleSchema20)).getValidationMessages();
+        byte[] document = getClass().getResourceAsStream(simpleSchema20).readAllBytes();
+
+        assertEquals(expected, schematron.validate(document, null).getValidationMessages());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(document.length);
+        buffer.put(document).flip();
+        assertEquals(expected, schematron.validate(buffer, null).getValidationMessages());
+        assertEquals(document.length, buffer.remaining());
+
+        Path file = directory.resolve("large.xml");
+        Files.writeString(file, new String(document, StandardCharsets.UTF_8) + "<!--" + " ".repeat((int)DocumentSources.MAP_THRESHOLD) + "-->");
+        assertEquals(expected, schematron.validate(file, null).getValidationMessages());
+    }
+
+    @Test
+    public void mapOnlyFilesFittingOneBuffer ()
+    {
+        assertFalse(DocumentSources.isMapped(DocumentSources.MAP_THRESHOLD - 1));
+        assertTrue(DocumentSources.isMapped(DocumentSources.MAP_THRESHOLD));
+        assertTrue(DocumentSources.isMapped(DocumentSources.MAX_MAP_SIZE));
+        assertFalse(DocumentSources.isMapped(DocumentSources.MAX_MAP_SIZE + 1));
+    }
+
+    @Test
+    public void sharedResolverReadsIncludesOnce (@TempDir final Path directory) throws Exception
+    {
+        Path schema = directory.resolve("schema.sch");
+        Files.writeString(schema, "<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='xslt2'><include href='pattern.sch'/></schema>");
+        Files.writeString(directory.resolve("pattern.sch"), "<pattern xmlns='http://purl.oclc.org/dsdl/schematron'><rule context='/'><assert test='false()'/></rule></pattern>");
+
+        SharedResolver resolver = new SharedResolver();
+        Schematron first = new Schematron(new SchXslt(), new StreamSource(schema.toUri().toString()), null, null, null, resolver);
+        long misses = resolver.getMissCount();
+        assertTrue(misses > 0);
+        assertTrue(resolver.getSize() > 0);
+
+        Schematron second = new Schematron(new SchXslt(), new StreamSource(schema.toUri().toString()), null, null, null, resolver);
+        assertEquals(misses, resolver.getMissCount());
+        assertTrue(resolver.getHitCount() > 0);
+        assertEquals(first.validate(getResourceAsStream(simpleSchema20)).getValidationMessages(), second.validate(getResourceAsStream(simpleSchema20)).getValidationMessages());
+        assertFalse(second.validate(getResourceAsStream(simpleSchema20)).isValid());
+
+        resolver.clear();
+        assertEquals(0, resolver.getSize());
+    }
+
+    @Test
+    public void registryCompilesOnceAndEvicts () throws Exception
+    {
+        SchematronLocator locator = id -> id.startsWith("schema") ? new StreamSource(new StringReader("<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='xslt2'><pattern><rule context='/'><assert test='false()'>" + id + "</assert></rule></pattern></schema>")) : null;
+
+        SchematronRegistry probe = new SchematronRegistry(new SchXslt(), locator, Long.MAX_VALUE);
+        probe.get("schema-1");
+        long weight = probe.getStatistics().getWeight();
+        assertTrue(weight > 0);
+
+        SchematronRegistry registry = new SchematronRegistry(new SchXslt(), locator, weight * 5 / 2);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Schematron>> schemas = new ArrayList<Future<Schematron>>();
+            for (int i = 0; i < 16; i++) {
+                schemas.add(executor.submit(() -> registry.get("schema-1")));
+            }
+            for (Future<Schematron> schema : schemas) {
+                assertTrue(schema.get() == schemas.get(0).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, registry.getStatistics().getCompileCount());
+        assertEquals(15, registry.getStatistics().getHitCount());
+
+        registry.get("schema-2");
+        registry.get("schema-1");
+        registry.get("schema-3");
+        RegistryStatistics statistics = registry.getStatistics();
+        assertEquals(3, statistics.getCompileCount());
+        assertEquals(1, statistics.getEvictionCount());
+        assertEquals(2, statistics.getSize());
+        assertTrue(statistics.getWeight() <= weight * 5 / 2);
+
+        registry.get("schema-1");
+        assertEquals(3, registry.getStatistics().getCompileCount());
+        assertEquals("[failed-assert / schema-3]", registry.get("schema-3").validate(getResourceAsStream(simpleSchema20)).getValidationMessages().toString());
+
+        assertThrows(SchematronException.class, () -> registry.get("unknown"));
+        assertEquals(1, registry.getStatistics().getCompileFailureCount());
+    }
+
+    @Test
+    public void writeReportFormats () throws Exception
+    {
+        Schematron schematron = new Schematron(new SchXslt(), getResourceAsStream(failingSchema20));
+        List<Finding> findings = schematron.validate(getResourceAsStream(simpleSchema20)).getFindings();
+
+        ByteArrayOutputStream svrl = new ByteArrayOutputStream();
+        Result result = schematron.validate(getResourceAsStream(simpleSchema20), null, ReportFormat.SVRL.newResult(svrl));
+        assertEquals(findings.size(), result.getFindingCount());
+        assertTrue(svrl.toString(StandardCharsets.UTF_8).contains("failed-assert"));
+
+        StringWriter json = new StringWriter();
+        result = schematron.validate(getResourceAsStream(simpleSchema20), null, ReportFormat.JSON_LINES.newResult(json));
+        assertEquals(findings.size(), result.getFindingCount());
+        String[] lines = json.toString().split("\n");
+        assertEquals(findings.size(), lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            assertTrue(lines[i].startsWith("{\"kind\":\"" + findings.get(i).getKind().getName() + "\""));
+            assertTrue(lines[i].contains("\"location\":\"" + findings.get(i).getLocation() + "\""));
+        }
+    }
+
+    @Test
+    public void concurrentValidation () throws Exception
+    {
+        Schematron schematron = new Schematron(new SchXslt(), getResourceAsStream(simpleSchema20), "external-param");
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("external-param", Integer.valueOf(1));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 400; i++) {
+                final boolean valid = i % 2 == 0;
+                results.add(executor.submit(() -> {
+                    Result result = schematron.validate(getResourceAsStream(simpleSchema20), valid ? parameters : null);
+                    return result.isValid() == valid;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void batchValidationIsolatesErrors () throws Exception
+    {
+        Schematron schematron = new Schematron(new SchXslt(), getResourceAsStream(simpleSchema20), "always-valid");
+
+        List<Source> documents = new ArrayList<Source>();
+        for (int i = 0; i < 20; i++) {
+            documents.add(getResourceAsStream(simpleSchema20));
+        }
+        documents.add(new StreamSource(new StringReader("<not-well-formed"), "not-well-formed.xml"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<CompletableFuture<Result>> results = schematron.validateAll(documents, null, executor, 3);
+            assertEquals(documents.size(), results.size());
+            for (int i = 0; i < 20; i++) {
+                assertTrue(results.get(i).get().isValid());
+            }
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> results.get(20).get());
+            assertTrue(failure.getCause() instanceof SchematronException);
+        } finally {
+            executor.shutdown();
+        }
+
+        for (CompletableFuture<Result> result : schematron.validateAll(List.of(getResourceAsStream(simpleSchema20), getResourceAsStream(simpleSchema20)))) {
+            assertTrue(result.get().isValid());
+        }
+    }
+
+    @Test
+    public void streamValidationReport () throws Exception
+    {
+        Schematron schematron = new Schematron(new SchXslt(), getResourceAsStream(simpleSchema20), "external-param");
+
+        StringWriter report = new StringWriter();
+        Result result = schematron.validate(getResourceAsStream(simpleSchema20), null, new StreamResult(report));
+        assertFalse(result.isValid());
+        assertNull(result.getValidationReport());
+        assertTrue(report.toString().contains("failed-assert"));
+
+        List<String> elements = new ArrayList<String>();
+        DefaultHandler handler = new DefaultHandler() {
+                @Override
+                public void startElement (String uri, String localName, String qName, Attributes attributes)
+                {
+                    elements.add(localName);
+                }
+            };
+        result = schematron.validate(getResourceAsStream(simpleSchema20), null, new SAXResult(handler));
+        assertFalse(result.isValid());
+        assertTrue(elements.contains("failed-assert"));
+    }
+
+    @Test
+    public void validationStopsAtLimit () throws Exception
+    {
+        Schematron unprepared = new Schematron(new SchXslt(), getResourceAsStream(failingSchema20));
+        Result complete = unprepared.validate(getResourceAsStream(simpleSchema20));
+        assertFalse(complete.isTruncated());
+        assertEquals(complete.getValidationMessages(), unprepared.validate(getResourceAsStream(simpleSchema20), null, new ValidationLimit(1)).getValidationMessages());
+
+        Schematron schematron = new Schematron(new SchXslt(), getResourceAsStream(failingSchema20), null, null, Map.of(Schematron.LIMIT_OPTION, Boolean.TRUE));
+
+        Result result = schematron.validate(getResourceAsStream(simpleSchema20), null, new ValidationLimit(1));
+        assertTrue(result.isTruncated());
+        assertFalse(result.isValid());
+        assertEquals(1, result.getValidationMessages().size());
+
+        result = schematron.validate(getResourceAsStream(simpleSchema20), null, new ValidationLimit(2, Set.of("error"), Set.of("fatal")));
+        assertTrue(result.isTruncated());
+        assertEquals(2, result.getValidationMessages().stream().filter(message -> message.startsWith("successful-report")).count());
+
+        result = schematron.validate(getResourceAsStream(simpleSchema20), null, new ValidationLimit(Integer.MAX_VALUE));
+        assertFalse(result.isTruncated());
+        assertEquals(complete.getValidationMessages(), result.getValidationMessages());
+    }
+
+    @Test
+    public void listenerReceivesMetrics () throws Exception
+    {
+        List<ValidationMetrics> metrics = new ArrayList<ValidationMetrics>();
+        List<String> steps = new ArrayList<String>();
+        SchematronListener listener = new SchematronListener() {
+                @Override
+                public void transpiled (String systemId, List<String> transpilerSteps, long duration)
+                {
+                    steps.addAll(transpilerSteps);
+                }
+
+                @Override
+                public void validated (ValidationMetrics validation)
+                {
+                    metrics.add(validation);
+                }
+            };
+
+        Instrumentation.addListener(listener);
+        try {
+            Schematron schematron = new Schematron(new SchXslt(), getResourceAsStream(failingSchema20));
+            Result result = schematron.validate(getResourceAsStream(simpleSchema20));
+
+            assertFalse(steps.isEmpty());
+            assertFalse(steps.contains(Compiler.FINDINGS_STEP));
+            assertEquals(1, metrics.size());
+            assertEquals(result.getFindingCount(), metrics.get(0).getFindingCount());
+            assertTrue(metrics.get(0).getInputSize() > 0);
+            assertTrue(metrics.get(0).getTransformTime() > 0);
+        } finally {
+            Instrumentation.removeListener(listener);
+        }
+    }
+
+    @Test
+    public void failingListenerDoesNotFailValidation () throws Exception
+    {
+        SchematronListener listener = new SchematronListener() {
+                @Override
+                public void validated (ValidationMetrics validation)
+                {
+                    throw new IllegalStateException("Listener failed");
+                }
+            };
+
+        Instrumentation.addListener(listener);
+        try {
+            Schematron schematron = new Schematron(new SchXslt(), getResourceAsStream(failingSchema20));
+            assertFalse(schematron.validate(getResourceAsStream(simpleSchema20)).isValid());
+        } finally {
+            Instrumentation.removeListener(listener);
+        }
+    }
+
+    @Test
+    public void profileRules () throws Exception
+    {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put(Schematron.PROFILE_OPTION, Boolean.TRUE);
+        Schematron schematron = new Schematron(new SchXslt(), getResourceAsStream(failingSchema20), null, null, options);
+        Result result = schematron.validate(getResourceAsStream(simpleSchema20));
+        assertEquals(new Schematron(new SchXslt(), getResourceAsStream(failingSchema20)).validate(getResourceAsStream(simpleSchema20)).getValidationMessages(), result.getValidationMessages());
+
+        Map<ProfileEntry.Kind, Long> counts = new HashMap<ProfileEntry.Kind, Long>();
+        for (ProfileEntry entry : schematron.getProfile()) {
+            counts.merge(entry.getKind(), entry.getCount(), Long::sum);
+        }
+        long fired = result.getFindingCount("warning");
+        assertEquals(2 * fired, counts.get(ProfileEntry.Kind.PATTERN));
+        assertEquals(2 * fired, counts.get(ProfileEntry.Kind.RULE));
+        assertEquals(fired, counts.get(ProfileEntry.Kind.ASSERT));
+        assertEquals(fired, counts.get(ProfileEntry.Kind.REPORT));
+
+        schematron.resetProfile();
+        assertEquals(0, schematron.getProfile().get(0).getCount());
+        assertThrows(IllegalStateException.class, () -> new Schematron(new SchXslt(), getResourceAsStream(failingSchema20)).getProfile());
+    }
+
+    @Test
+    public void typedFindings () throws Exception
+    {
+        Schematron schematron = new Schematron(new SchXslt(), getResourceAsStream(failingSchema20));
+        Result result = schematron.validate(getResourceAsStream(simpleSchema20));
+
+        int warnings = result.getFindingCount("warning");
+        assertTrue(warnings > 0);
+        assertEquals(warnings, result.getFindingCount("error"));
+        assertEquals(0, result.getFindingCount(null));
+        assertEquals(2 * warnings, result.getFindingCount());
+
+        Finding finding = result.getFindings().get(0);
+        assertEquals(Finding.Kind.FAILED_ASSERT, finding.getKind());
+        assertEquals("warning", finding.getRole());
+        assertNull(finding.getFlag());
+        assertEquals("false()", finding.getTest());
+        assertEquals("Every element is reported as warning", finding.getText());
+        assertEquals("warnings", finding.getPattern());
+        assertEquals("*", finding.getContext());
+
+        Finding last = result.getFindings().get(result.getFindingCount() - 1);
+        assertEquals(Finding.Kind.SUCCESSFUL_REPORT, last.getKind());
+        assertEquals("fatal", last.getFlag());
+        assertEquals("errors", last.getPattern());
+
+        StringWriter report = new StringWriter();
+        result = schematron.validate(getResourceAsStream(simpleSchema20), null, new StreamResult(report));
+        assertEquals(warnings, result.getFindingCount("error"));
+        assertTrue(result.getFindings().isEmpty());
+    }
+
+    @Test
+    public void validationMessagesKeepTheirOrder () throws Exception
+    {
+        String report = "<svrl:schematron-output xmlns:svrl='http://purl.oclc.org/dsdl/svrl'>"
+            + "<svrl:successful-report location='/a'><svrl:text>report</svrl:text></svrl:successful-report>"
+            + "<svrl:failed-assert location='/b'><svrl:text>assert</svrl:text></svrl:failed-assert>"
+            + "<wrapper><svrl:failed-assert location='/c'><svrl:text>nested</svrl:text></svrl:failed-assert></wrapper>"
+            + "</svrl:schematron-output>";
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        Result result = new Result(documentBuilderFactory.newDocumentBuilder().parse(new InputSource(new StringReader(report))));
+
+        assertEquals(List.of("failed-assert /b assert", "failed-assert /c nested", "successful-report /a report"), result.getValidationMessages());
+        assertEquals(2, result.getFindingCount());
+        assertEquals(List.of(Finding.Kind.SUCCESSFUL_REPORT, Finding.Kind.FAILED_ASSERT), result.getFindings().stream().map(Finding::getKind).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void selectPhaseAtValidationTime () throws Exception
+    {
+        for (String schema : List.of(simpleSchema10, simpleSchema20)) {
+            Schematron schematron = new Schematron(new SchXslt(), getResourceAsStream(schema), Schematron.RUNTIME_PHASE);
+            assertFalse(schematron.validate(getResourceAsStream(schema)).isValid());
+
+            Map<String, Object> parameters = new HashMap<String, Object>();
+            parameters.put(Schematron.PHASE_PARAMETER, "always-valid");
+            assertTrue(schematron.validate(getResourceAsStream(schema), parameters).isValid());
+
+            parameters.put(Schematron.PHASE_PARAMETER, "external-param");
+            Result result = schematron.validate(getResourceAsStream(schema), parameters);
+            assertFalse(result.isValid());
+            assertEquals(1, result.getFindingCount());
+            assertEquals("external-param", result.getValidationReport().getDocumentElement().getAttribute("phase"));
+
+            parameters.put(Schematron.PHASE_PARAMETER, "no-such-phase");
+            assertThrows(SchematronException.class, () -> schematron.validate(getResourceAsStream(schema), parameters));
+        }
+    }
+
+    @Test
+    public void validateParsedDocumentAgainstManySchemas () throws Exception
+    {
+        ParsedDocument document = ParsedDocument.parse(getResourceAsStream(simpleSchema20));
+        List<Schematron> schemas = List.of(
+            new Schematron(new SchXslt(), getResourceAsStream(simpleSchema20), "always-valid"),
+            new Schematron(new SchXslt(), getResourceAsStream(simpleSchema20), "external-param"),
+            new Schematron(new SchXslt(), getResourceAsStream(simpleSchema10), "always-valid"),
+            new Schematron(new SchXslt(), getResourceAsStream(failingSchema20))
+        );
+
+        List<CompletableFuture<Result>> results = document.validateAll(schemas);
+        assertEquals(4, results.size());
+        assertTrue(results.get(0).get().isValid());
+        assertFalse(results.get(1).get().isValid());
+        assertTrue(results.get(2).get().isValid());
+        assertEquals(schemas.get(3).validate(getResourceAsStream(simpleSchema20)).getFindingCount(), results.get(3).get().getFindingCount());
+
+        assertFalse(schemas.get(1).validate(document.asSource()).isValid());
+    }
+
+    @Test
+    public void saxonEngineMatchesJaxp () throws Exception
+    {
+        Templates templates = Schematron.newTemplates(new SchXslt(), getResourceAsStream(failingSchema20), null, null, null);
+        TransformerFactory factory = Compiler.getDefaultTransformerFactory();
+        Validator saxon = new Validator(new XMLResolver(), templates, factory, true);
+        Validator jaxp = new Validator(new XMLResolver(), templates, factory, false);
+
+        Result expected = jaxp.validate(getResourceAsStream(simpleSchema20), null);
+        Result result = saxon.validate(getResourceAsStream(simpleSchema20), null);
+        assertEquals(expected.getValidationMessages(), result.getValidationMessages());
+        assertEquals(expected.getFindingCount("warning"), result.getFindingCount("warning"));
+
+        Document report = result.getValidationReport();
+        assertEquals(expected.getValidationReport().getDocumentElement().getNamespaceURI(), report.getDocumentElement().getNamespaceURI());
+        assertEquals(expected.getValidationReport().getElementsByTagNameNS("*", "*").getLength(), report.getElementsByTagNameNS("*", "*").getLength());
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("external-param", 1);
+        Templates parameterized = Schematron.newTemplates(new SchXslt(), getResourceAsStream(simpleSchema20), "external-param", null, null);
+        assertTrue(new Validator(new XMLResolver(), parameterized, factory, true).validate(getResourceAsStream(simpleSchema20), parameters).isValid());
+    }
+
     StreamSource getResourceAsStream (String resource)
     {
         return new StreamSource(getClass().getResourceAsStream(resource), resource);